@@ -7,13 +7,29 @@ import mars.mips.instructions.*;
 
 public class CarAssembly extends CustomAssembly{
 
-    private static final int CAR_SPEED = 20;
-    private static final int CAR_STEER = 21;
-    private static final int CAR_LIGHTS = 22;
-    private static final int CAR_AC = 23;
-    private static final int CAR_SEAT = 24;
-    private static final int CAR_STATUS = 25;
-    private static final int GAS_LEVEL = 26;
+    private static CarDecoder decoder;
+    private static String language;
+
+    //attached by the wrapper around every instruction (see the end of populate)
+    private static CarState car(){
+        return CarDevice.getInstance();
+    }
+
+    /** Decode table for the language, built (and checked for ambiguous encodings) by populate(). */
+    public static synchronized CarDecoder getDecoder(){
+        if (decoder == null){
+            new CarAssembly().populate();
+        }
+        return decoder;
+    }
+
+    /** Example and encoding of every instruction, one per line; changes whenever the language does. */
+    public static synchronized String getLanguage(){
+        if (language == null){
+            new CarAssembly().populate();
+        }
+        return language;
+    }
 
     @Override
     public String getName(){
@@ -90,6 +106,7 @@ public class CarAssembly extends CustomAssembly{
                                 if ((add1 >= 0 && add2 >= 0 && sum < 0)
                                         || (add1 < 0 && add2 < 0 && sum >= 0))
                                 {
+                                    CarProfiler.clamp(CarProfiler.ADDI_OVERFLOW);
                                     throw new ProcessingException(statement,
                                             "arithmetic overflow", Exceptions.ARITHMETIC_OVERFLOW_EXCEPTION);
                                 }
@@ -139,6 +156,7 @@ public class CarAssembly extends CustomAssembly{
                                 int res;
                                 if (denominator==0){
                                     res = 0;
+                                    CarProfiler.clamp(CarProfiler.DIV_BY_ZERO);
                                 }
                                 else{
                                     res = (int)RegisterFile.getValue(rs)/denominator;
@@ -208,6 +226,38 @@ public class CarAssembly extends CustomAssembly{
                                 RegisterFile.updateRegister(rd, res);
                             }
                         }));
+        instructionList.add(
+                new BasicInstruction("lw $t1,-100($t2)",
+                        "LW : load the word at ($t2 + offset) into $t1, the car fields are mapped from 0xffffff80",
+                        BasicInstructionFormat.I_FORMAT,
+                        "100011 ttttt fffff ssssssssssssssss",
+                        new SimulationCode() {
+                            public void simulate(ProgramStatement statement) throws ProcessingException {
+                                int[] operands = statement.getOperands();
+                                try {
+                                    RegisterFile.updateRegister(operands[0],
+                                            Globals.memory.getWord(RegisterFile.getValue(operands[2]) + operands[1]));
+                                } catch (AddressErrorException e) {
+                                    throw new ProcessingException(statement, e);
+                                }
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("sw $t1,-100($t2)",
+                        "SW : store $t1 into the word at ($t2 + offset), the car fields are mapped from 0xffffff80",
+                        BasicInstructionFormat.I_FORMAT,
+                        "101011 ttttt fffff ssssssssssssssss",
+                        new SimulationCode() {
+                            public void simulate(ProgramStatement statement) throws ProcessingException {
+                                int[] operands = statement.getOperands();
+                                try {
+                                    Globals.memory.setWord(RegisterFile.getValue(operands[2]) + operands[1],
+                                            RegisterFile.getValue(operands[0]));
+                                } catch (AddressErrorException e) {
+                                    throw new ProcessingException(statement, e);
+                                }
+                            }
+                        }));
         //CREATIVE INSTRUCTIONS
         instructionList.add(
                 new BasicInstruction("throttle $t1",
@@ -218,14 +268,7 @@ public class CarAssembly extends CustomAssembly{
                             public void simulate(ProgramStatement statement) throws ProcessingException {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int delta = RegisterFile.getValue(rs);
-                                int speed = RegisterFile.getValue(CAR_SPEED);
-                                long newSpeed = (long)speed + (long)delta;
-                                if (newSpeed < 0){
-                                    newSpeed = 0;
-                                }
-                                RegisterFile.updateRegister(CAR_SPEED, (int) newSpeed);
-                                SystemIO.printString("Your speed is now: "+newSpeed+" \n");
+                                car().throttle(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -239,12 +282,7 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int v = RegisterFile.getValue(rs);
-                                if (v < 0) {
-                                    v = 0;
-                                }
-                                RegisterFile.updateRegister(CAR_SPEED, v);
-                                SystemIO.printString("Your speed is: "+v+" \n");
+                                car().setSpeed(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -258,16 +296,7 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int delta = RegisterFile.getValue(rs);
-                                int angle = RegisterFile.getValue(CAR_STEER);
-                                int newAngle = angle + delta;
-                                if (newAngle < -90){
-                                    newAngle = -90;
-                                } else if (newAngle > 90) {
-                                    newAngle = 90;
-                                }
-                                RegisterFile.updateRegister(CAR_STEER, newAngle);
-                                SystemIO.printString("You are turned at a: "+newAngle+" degree angle \n");
+                                car().steer(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -281,9 +310,7 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int angle = RegisterFile.getValue(rs);
-                                RegisterFile.updateRegister(CAR_STEER, angle);
-                                SystemIO.printString("You are turned at a: "+angle+" degree angle \n");
+                                car().setSteer(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -295,11 +322,7 @@ public class CarAssembly extends CustomAssembly{
                         {
                             public void simulate(ProgramStatement statement) throws ProcessingException
                             {
-                                RegisterFile.updateRegister(CAR_SPEED, 0);
-                                int status = RegisterFile.getValue(CAR_STATUS);
-                                status |= 0x1;
-                                RegisterFile.updateRegister(CAR_STATUS, status);
-                                SystemIO.printString("Your car is now stopped \n");
+                                car().ebrake();
                             }
                         }));
         instructionList.add(
@@ -313,21 +336,7 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int mask = RegisterFile.getValue(rs);
-                                RegisterFile.updateRegister(CAR_LIGHTS, mask);
-
-                                if (mask == 0x01){
-                                    SystemIO.printString("the headlights are now on \n");
-                                }if(mask == 0x02 ){
-                                    SystemIO.printString("the high beams are now on \n");
-                                }if (mask == 0x04) {
-                                    SystemIO.printString("the left turn signal is now on \n");
-                                }if (mask == 0x08) {
-                                    SystemIO.printString("the right turn signal is now on \n");
-                                }if (mask == 0x10) {
-                                    SystemIO.printString("the hazard lights are now on \n");
-                                }if (mask == 0)
-                                    SystemIO.printString("the lights are now off \n");
+                                car().lights(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -341,9 +350,7 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int acVal = RegisterFile.getValue(rs);
-                                RegisterFile.updateRegister(CAR_AC, acVal);
-                                SystemIO.printString("the car is now: "+acVal+" fahrenheit \n");
+                                car().ac(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
@@ -357,24 +364,19 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int seatPos = RegisterFile.getValue(rs);
-                                RegisterFile.updateRegister(CAR_SEAT, seatPos);
-                                SystemIO.printString("the seat is now set at: "+seatPos +" \n");
+                                car().seat(RegisterFile.getValue(rs));
                             }
                         }));
         instructionList.add(
                 new BasicInstruction("pophood",
                         "POPHOOD : pops the hood",
                         BasicInstructionFormat.R_FORMAT,
-                        "000000 00000 00000 00000 00000 011000",
+                        "000000 00000 00000 00000 00000 011011",
                         new SimulationCode()
                         {
                             public void simulate(ProgramStatement statement) throws ProcessingException
                             {
-                                int status = RegisterFile.getValue(CAR_STATUS);
-                                status |= 0x2;
-                                RegisterFile.updateRegister(CAR_STATUS, status);
-                                SystemIO.printString("the hood is now popped \n");
+                                car().popHood();
                             }
                         }));
         instructionList.add(
@@ -388,17 +390,332 @@ public class CarAssembly extends CustomAssembly{
                             {
                                 int[] operands = statement.getOperands();
                                 int rs = operands[0];
-                                int amt = RegisterFile.getValue(rs);
-                                int curr = RegisterFile.getValue(GAS_LEVEL);
-                                long newLevel = (long)amt + (long)curr;
-                                if (newLevel < 0){
-                                    newLevel = 0;
-                                } else if (newLevel > 100) {
-                                    newLevel = 100;
+                                car().fillGas(RegisterFile.getValue(rs));
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("tick",
+                        "TICK : advance time one step, moving the car along its heading and burning gas",
+                        BasicInstructionFormat.R_FORMAT,
+                        "000000 00000 00000 00000 00000 011100",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                car().tick();
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("drive $t1",
+                        "DRIVE : advance time ($t1) steps at once, same result as ($t1) ticks",
+                        BasicInstructionFormat.R_FORMAT,
+                        "000000 fffff 00000 00000 00000 011101",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                int rs = operands[0];
+                                car().drive(RegisterFile.getValue(rs));
+                            }
+                        }));
+        //IMMEDIATE CAR INSTRUCTIONS
+        instructionList.add(
+                new BasicInstruction("throttlei -100",
+                        "THROTTLEI : change the speed by a signed 16-bit immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110000 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().throttle(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("setspdi -100",
+                        "SETSPDI : set the speed right away to a signed 16-bit immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110001 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().setSpeed(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("steeri -100",
+                        "STEERI : adjusts the steering angle by a signed 16-bit immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110010 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().steer(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("setsteeri -100",
+                        "SETSTEERI : set the steering angle straight to a signed 16-bit immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110011 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().setSteer(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("lightsi -100",
+                        "LIGHTSI : sets the lights bitmask to an immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110100 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().lights(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("aci -100",
+                        "ACI : sets the ac to an immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110101 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().ac(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("seati -100",
+                        "SEATI : sets the seat position to an immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110110 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().seat(operands[0] << 16 >> 16);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("fillgasi -100",
+                        "FILLGASI : fills the gas by a signed 16-bit immediate",
+                        BasicInstructionFormat.I_FORMAT,
+                        "110111 00000 00000 ffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                car().fillGas(operands[0] << 16 >> 16);
+                            }
+                        }));
+        //SENSORS
+        instructionList.add(
+                new BasicInstruction("sense $t1, 100",
+                        "SENSE : reads sensor channel 100 of the recording at the current tick into $t1",
+                        BasicInstructionFormat.I_FORMAT,
+                        "111000 00000 fffff ssssssssssssssss",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                int rt = operands[0];
+                                int value;
+                                try {
+                                    value = car().sense(operands[1]);
+                                } catch (IllegalArgumentException e) {
+                                    throw new ProcessingException(statement, e.getMessage());
+                                }
+                                RegisterFile.updateRegister(rt, value);
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("proximity $t1",
+                        "PROXIMITY : sets $t1 to the distance to the nearest other car on the road",
+                        BasicInstructionFormat.R_FORMAT,
+                        "000000 fffff 00000 00000 00000 011110",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                RegisterFile.updateRegister(operands[0], car().proximity());
+                            }
+                        }));
+        //VECTOR CAR INSTRUCTIONS
+        instructionList.add(
+                new BasicInstruction("vthrottle $t1,$t2,$t3",
+                        "VTHROTTLE : throttle by ($t3) the ($t2) car records starting at address ($t1)",
+                        BasicInstructionFormat.R_FORMAT,
+                        "000000 fffff sssss ttttt 00000 011111",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                int base = RegisterFile.getValue(operands[0]);
+                                int count = RegisterFile.getValue(operands[1]);
+                                int delta = RegisterFile.getValue(operands[2]);
+                                try {
+                                    for (int i = 0; i < count; i++){
+                                        int address = base + (i * CarState.RECORD_WORDS + CarState.SPEED) * 4;
+                                        Globals.memory.setWord(address, CarState.throttled(Globals.memory.getWord(address), delta));
+                                    }
+                                } catch (AddressErrorException e) {
+                                    throw new ProcessingException(statement, e);
                                 }
-                                RegisterFile.updateRegister(GAS_LEVEL,(int)newLevel);
-                                SystemIO.printString("the gas is now: "+newLevel +"% full \n");
                             }
                         }));
+        instructionList.add(
+                new BasicInstruction("vfillgas $t1,$t2,$t3",
+                        "VFILLGAS : fill the gas by ($t3) in the ($t2) car records starting at address ($t1)",
+                        BasicInstructionFormat.R_FORMAT,
+                        "000000 fffff sssss ttttt 00000 101111",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                int base = RegisterFile.getValue(operands[0]);
+                                int count = RegisterFile.getValue(operands[1]);
+                                int amt = RegisterFile.getValue(operands[2]);
+                                try {
+                                    for (int i = 0; i < count; i++){
+                                        int address = base + (i * CarState.RECORD_WORDS + CarState.GAS) * 4;
+                                        Globals.memory.setWord(address, CarState.filled(Globals.memory.getWord(address), amt));
+                                    }
+                                } catch (AddressErrorException e) {
+                                    throw new ProcessingException(statement, e);
+                                }
+                            }
+                        }));
+        //BRANCHES AND LOOPS
+        instructionList.add(
+                new BasicInstruction("beq $t1,$t2,label",
+                        "BEQ : branch to statement at label if $t1 and $t2 are equal",
+                        BasicInstructionFormat.I_BRANCH_FORMAT,
+                        "000100 fffff sssss tttttttttttttttt",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                if (RegisterFile.getValue(operands[0]) == RegisterFile.getValue(operands[1])){
+                                    Globals.instructionSet.processBranch(operands[2]);
+                                }
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("bne $t1,$t2,label",
+                        "BNE : branch to statement at label if $t1 and $t2 are not equal",
+                        BasicInstructionFormat.I_BRANCH_FORMAT,
+                        "000101 fffff sssss tttttttttttttttt",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                if (RegisterFile.getValue(operands[0]) != RegisterFile.getValue(operands[1])){
+                                    Globals.instructionSet.processBranch(operands[2]);
+                                }
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("j target",
+                        "J : jump to statement at target",
+                        BasicInstructionFormat.J_FORMAT,
+                        "000010 ffffffffffffffffffffffffff",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                Globals.instructionSet.processJump(
+                                        (RegisterFile.getProgramCounter() & 0xF0000000) | (operands[0] << 2));
+                            }
+                        }));
+        instructionList.add(
+                new BasicInstruction("repeat $t1,label",
+                        "REPEAT : subtract 1 from $t1 and branch back to label while $t1 is still above 0",
+                        BasicInstructionFormat.I_BRANCH_FORMAT,
+                        "111001 fffff 00000 ssssssssssssssss",
+                        new SimulationCode()
+                        {
+                            public void simulate(ProgramStatement statement) throws ProcessingException
+                            {
+                                int[] operands = statement.getOperands();
+                                int left = RegisterFile.getValue(operands[0]) - 1;
+                                RegisterFile.updateRegister(operands[0], left);
+                                if (left > 0){
+                                    Globals.instructionSet.processBranch(operands[1]);
+                                }
+                            }
+                        }));
+
+        //STEP COUNTING AND PROFILING
+        //wrap every instruction so the car device always knows how many have run
+        //and CarProfiler can count and time it when profiling is on
+        for (int i = 0; i < instructionList.size(); i++){
+            final BasicInstruction instruction = (BasicInstruction) instructionList.get(i);
+            final SimulationCode code = instruction.getSimulationCode();
+            final CarProfiler.Slot slot = CarProfiler.slot(instruction.getName());
+            instructionList.set(i,
+                    new BasicInstruction(instruction.getExampleFormat(),
+                            instruction.getDescription(),
+                            instruction.getInstructionFormat(),
+                            instruction.getOperationMask(),
+                            new SimulationCode()
+                            {
+                                public void simulate(ProgramStatement statement) throws ProcessingException
+                                {
+                                    CarDevice device = CarDevice.getInstance();
+                                    device.attach();
+                                    device.beginInstruction();
+                                    try {
+                                        if (CarProfiler.isEnabled()){
+                                            long start = System.nanoTime();
+                                            try {
+                                                code.simulate(statement);
+                                            } finally {
+                                                slot.record(System.nanoTime() - start);
+                                            }
+                                        } else {
+                                            code.simulate(statement);
+                                        }
+                                    } finally {
+                                        device.endInstruction();
+                                    }
+                                    device.setStep(device.getStep() + 1);
+                                }
+                            }));
+        }
+
+        CarDecoder table = new CarDecoder(instructionList);
+        StringBuilder definition = new StringBuilder();
+        for (int i = 0; i < instructionList.size(); i++){
+            BasicInstruction instruction = (BasicInstruction) instructionList.get(i);
+            definition.append(instruction.getExampleFormat()).append('|')
+                    .append(instruction.getOperationMask()).append('\n');
+        }
+        synchronized (CarAssembly.class){
+            decoder = table;
+            language = definition.toString();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package mars.mips.instructions.customlangs;
+import mars.mips.instructions.BasicInstruction;
+import mars.mips.instructions.Instruction;
+import java.util.List;
+
+/**
+ * Constant time decoder for Car Assembly machine code. Every instruction is
+ * filed in a dense table under its opcode, or under its funct when the opcode is
+ * 000000, so decoding a word is one array lookup plus a check of its fixed bits.
+ *
+ * Building the table fails with an IllegalStateException if two instructions
+ * share a slot, since one of them could then never be decoded.
+ */
+public class CarDecoder {
+
+    private static final int SLOTS = 128;
+
+    private final BasicInstruction[] instructions = new BasicInstruction[SLOTS];
+    private final int[] fixedMask = new int[SLOTS];
+    private final int[] fixedMatch = new int[SLOTS];
+    // for operand k (f, s, t) of the instruction in a slot: shift and width of its bits
+    private final int[][] operandShift = new int[SLOTS][3];
+    private final int[][] operandWidth = new int[SLOTS][3];
+    private final int[] operandCount = new int[SLOTS];
+
+    public CarDecoder(List<Instruction> instructionList) {
+        for (Instruction instruction : instructionList) {
+            if (instruction instanceof BasicInstruction) {
+                add((BasicInstruction) instruction);
+            }
+        }
+    }
+
+    private void add(BasicInstruction instruction) {
+        String bits = instruction.getOperationMask().replaceAll(" ", "");
+        if (bits.length() != 32) {
+            throw new IllegalStateException(instruction.getName() + ": encoding is not 32 bits");
+        }
+        int mask = 0;
+        int match = 0;
+        int[] shift = new int[3];
+        int[] width = new int[3];
+        int count = 0;
+        for (int i = 0; i < 32; i++) {
+            char c = bits.charAt(i);
+            int bit = 31 - i;
+            if (c == '0' || c == '1') {
+                mask |= 1 << bit;
+                if (c == '1') {
+                    match |= 1 << bit;
+                }
+            } else {
+                int k = "fst".indexOf(c);
+                if (k < 0) {
+                    throw new IllegalStateException(instruction.getName() + ": unknown encoding letter " + c);
+                }
+                width[k]++;
+                shift[k] = bit;
+                count = Math.max(count, k + 1);
+            }
+        }
+        if ((mask >>> 26) != 0x3f) {
+            throw new IllegalStateException(instruction.getName() + ": opcode bits must be fixed");
+        }
+        int opcode = match >>> 26;
+        int slot = opcode;
+        if (opcode == 0) {
+            if ((mask & 0x3f) != 0x3f) {
+                throw new IllegalStateException(instruction.getName() + ": funct bits must be fixed");
+            }
+            slot = 64 + (match & 0x3f);
+        }
+        if (instructions[slot] != null) {
+            throw new IllegalStateException("ambiguous encoding: " + instructions[slot].getName()
+                    + " and " + instruction.getName() + " both decode from opcode "
+                    + binary(opcode) + (opcode == 0 ? " funct " + binary(match & 0x3f) : ""));
+        }
+        instructions[slot] = instruction;
+        fixedMask[slot] = mask;
+        fixedMatch[slot] = match;
+        operandShift[slot] = shift;
+        operandWidth[slot] = width;
+        operandCount[slot] = count;
+    }
+
+    private static int slot(int word) {
+        int opcode = word >>> 26;
+        return opcode == 0 ? 64 + (word & 0x3f) : opcode;
+    }
+
+    /** The instruction encoded by word, or null if it is not a valid Car Assembly word. */
+    public BasicInstruction decode(int word) {
+        int slot = slot(word);
+        if (instructions[slot] == null || (word & fixedMask[slot]) != fixedMatch[slot]) {
+            return null;
+        }
+        return instructions[slot];
+    }
+
+    /** Writes the operands of word into operands (f, s, t order) and returns how many there are. */
+    public int decodeOperands(int word, int[] operands) {
+        int slot = slot(word);
+        int[] shift = operandShift[slot];
+        int[] width = operandWidth[slot];
+        for (int k = 0; k < operandCount[slot]; k++) {
+            operands[k] = width[k] == 32 ? word : (word >>> shift[k]) & ((1 << width[k]) - 1);
+        }
+        return operandCount[slot];
+    }
+
+    private static String binary(int value) {
+        String s = Integer.toBinaryString(value);
+        return "000000".substring(s.length()) + s;
+    }
+}
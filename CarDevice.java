@@ -0,0 +1,186 @@
+package mars.mips.instructions.customlangs;
+import mars.mips.hardware.*;
+import java.io.IOException;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * The car state the MARS simulator runs against, mapped into the top of the
+ * memory-mapped I/O range so programs can read and write it with lw/sw.
+ * With the default memory configuration field i lives at 0xffffff80 + 4*i,
+ * which is reachable as "lw $t1, -128($zero)" (speed), "-124($zero)" (steer)
+ * and so on.
+ *
+ * Memory is only written for fields that changed, in one pass at the end of
+ * each instruction. A sentinel word after the fields tells us when MARS cleared
+ * memory for a new assemble or reset, at which point the car starts again from
+ * zero. Programs cannot change the sentinel: a store to it is put back at once.
+ */
+public class CarDevice extends CarState implements Observer {
+
+    public static final int MMIO_SIZE = 0x80;
+    private static final int SENTINEL_OFFSET = 0x7c;
+    private static final int SENTINEL = 0xCA7CA700;
+
+    private static final class Holder {
+        static final CarDevice INSTANCE = new CarDevice();
+    }
+
+    private int baseAddress;
+    private boolean mapped;
+    private boolean publishing;
+    // inside an instruction: changed fields wait in unpublished until it ends
+    private boolean batching;
+    private int unpublished;
+    private CarTraceRecorder recorder;
+
+    private CarDevice() {
+        super(CarTelemetry.configured());
+    }
+
+    public static CarDevice getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public static int getBaseAddress() {
+        return Memory.kernelHighAddress - MMIO_SIZE + 1;
+    }
+
+    /** Makes sure the device is wired into the current memory; call before each car instruction. */
+    public CarDevice attach() {
+        int base = getBaseAddress();
+        Memory memory = Memory.getInstance();
+        try {
+            if (base == baseAddress && memory.getWordNoNotify(base + SENTINEL_OFFSET) == SENTINEL) {
+                return this;
+            }
+            memory.deleteObserver(this);
+            publishing = true;
+            try {
+                memory.setWord(base + SENTINEL_OFFSET, SENTINEL);
+            } finally {
+                publishing = false;
+            }
+            memory.addObserver(this, base, base + SENTINEL_OFFSET + 3);
+            mapped = true;
+        } catch (AddressErrorException e) {
+            // memory configuration without an MMIO range; the car still works, just not through lw/sw
+            if (!mapped && base == baseAddress) {
+                return this;
+            }
+            mapped = false;
+        }
+        baseAddress = base;
+        reset();
+        String trace = System.getProperty("car.trace");
+        if (trace != null) {
+            startTrace(trace);
+        }
+        return this;
+    }
+
+    /** Records this run to filename (see CarTraceRecorder), replacing the trace of any earlier run. */
+    public synchronized void startTrace(String filename) {
+        try {
+            if (recorder != null) {
+                recorder.close();
+            } else {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    public void run() {
+                        stopTrace();
+                    }
+                }));
+            }
+            recorder = new CarTraceRecorder(filename, this);
+        } catch (IOException e) {
+            recorder = null;
+            System.err.println("car trace not recorded: " + e);
+        }
+    }
+
+    public synchronized void stopTrace() {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            System.err.println("car trace not closed cleanly: " + e);
+        }
+        recorder = null;
+    }
+
+    /** Holds back memory writes until endInstruction(); the wrapper around every car instruction calls both. */
+    void beginInstruction() {
+        batching = true;
+    }
+
+    /** Writes every field the instruction changed to memory, in one pass. */
+    void endInstruction() {
+        batching = false;
+        publish();
+    }
+
+    @Override
+    protected void changed(int dirtyMask) {
+        if (mapped) {
+            unpublished |= dirtyMask;
+            if (!batching) {
+                publish();
+            }
+        }
+        super.changed(dirtyMask);
+    }
+
+    private void publish() {
+        int mask = unpublished;
+        if (mask == 0) {
+            return;
+        }
+        unpublished = 0;
+        Memory memory = Memory.getInstance();
+        publishing = true;
+        try {
+            for (int i = 0; i < FIELDS; i++) {
+                // a field set back to what memory holds costs no write, notice or backstep entry
+                if ((mask & (1 << i)) != 0 && memory.getWordNoNotify(baseAddress + 4 * i) != fields[i]) {
+                    memory.setWord(baseAddress + 4 * i, fields[i]);
+                }
+            }
+        } catch (AddressErrorException e) {
+            // see attach()
+        } finally {
+            publishing = false;
+        }
+    }
+
+    /** A program stored into one of the device words. */
+    public void update(Observable memory, Object notice) {
+        if (publishing || !(notice instanceof MemoryAccessNotice)) {
+            return;
+        }
+        MemoryAccessNotice access = (MemoryAccessNotice) notice;
+        if (access.getAccessType() != AccessNotice.WRITE) {
+            return;
+        }
+        if (access.getAddress() - baseAddress >= SENTINEL_OFFSET) {
+            // the sentinel is read-only; put it back
+            publishing = true;
+            try {
+                if (Memory.getInstance().getWordNoNotify(baseAddress + SENTINEL_OFFSET) != SENTINEL) {
+                    Memory.getInstance().setWord(baseAddress + SENTINEL_OFFSET, SENTINEL);
+                }
+            } catch (AddressErrorException e) {
+                // see attach()
+            } finally {
+                publishing = false;
+            }
+            return;
+        }
+        int field = (access.getAddress() - baseAddress) >> 2;
+        if (field >= 0 && field < FIELDS) {
+            fields[field] = access.getValue();
+            super.changed(1 << field);
+        }
+    }
+}
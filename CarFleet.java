@@ -0,0 +1,285 @@
+package mars.mips.instructions.customlangs;
+import mars.*;
+import mars.mips.hardware.RegisterFile;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many Car Assembly drives at once on {@link CarMachine}s. Each run gets its
+ * own machine, so nothing is shared between runs except the read-only compiled
+ * program. Scripts are assembled one at a time up front (the MARS assembler is
+ * global) and then executed on a pool with one thread per core.
+ *
+ * Usage:
+ *   CarFleet scriptsDir            run every .asm file in the directory
+ *   CarFleet drive.asm params.txt  run one script once per line of params.txt,
+ *                                  where a line looks like "$t0=5 $a1=-3"
+ * Add -Dcar.world=true to put every car on one shared road (see CarWorld).
+ */
+public class CarFleet {
+
+    public static class Run {
+        final String name;
+        final CarProgram program;
+        final int[] registers;
+        final int[] values;
+
+        public Run(String name, CarProgram program, int[] registers, int[] values) {
+            this.name = name;
+            this.program = program;
+            this.registers = registers;
+            this.values = values;
+        }
+    }
+
+    public static class Result {
+        public final String name;
+        public final CarState state;
+        public final long executed;
+        public final String error;
+
+        Result(String name, CarState state, long executed, String error) {
+            this.name = name;
+            this.state = state;
+            this.executed = executed;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            String summary = name + ": " + CarMachine.describe(state) + " instructions=" + executed;
+            return error == null ? summary : summary + " error=" + error;
+        }
+    }
+
+    private final int threads;
+
+    public CarFleet() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CarFleet(int threads) {
+        this.threads = threads;
+    }
+
+    /** Runs everything and returns the results in the same order as runs. */
+    public List<Result> runAll(List<Run> runs) throws InterruptedException {
+        return runAll(runs, null);
+    }
+
+    /**
+     * Same as runAll(runs), with every car on the same road when world is not
+     * null: all cars join it (one lane each) before any of them starts, so
+     * proximity and collisions see the whole fleet (see drive).
+     */
+    public List<Result> runAll(List<Run> runs, CarWorld world) throws InterruptedException {
+        List<CarMachine> machines = new ArrayList<CarMachine>(runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            CarMachine machine = new CarMachine();
+            if (world != null) {
+                world.join(machine.getState());
+            }
+            machines.add(machine);
+        }
+        if (world != null) {
+            return drive(runs, machines, world);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> pending = new ArrayList<Future<Result>>(runs.size());
+            for (int i = 0; i < runs.size(); i++) {
+                final Run run = runs.get(i);
+                final CarMachine machine = machines.get(i);
+                pending.add(pool.submit(new Callable<Result>() {
+                    public Result call() {
+                        return execute(run, machine);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(runs.size());
+            for (Future<Result> future : pending) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs the cars on world one tick at a time. The cars are cut into one batch
+     * per thread; a tick runs every batch on the pool, where each car checks for
+     * collisions, steps its program through its next tick (see CarMachine.step)
+     * and publishes where it ended up, and then advances the road. That is the
+     * only barrier per tick. Cars whose programs have ended stay parked but keep
+     * publishing and checking for collisions until the last car stops.
+     */
+    private List<Result> drive(final List<Run> runs, final List<CarMachine> machines, final CarWorld world)
+            throws InterruptedException {
+        final int cars = runs.size();
+        final boolean[] parked = new boolean[cars];
+        final String[] errors = new String[cars];
+        for (int i = 0; i < cars; i++) {
+            setRegisters(runs.get(i), machines.get(i));
+        }
+        int batches = Math.max(1, Math.min(threads, cars));
+        List<Callable<Integer>> tick = new ArrayList<Callable<Integer>>(batches);
+        for (int i = 0; i < batches; i++) {
+            final int from = (int) ((long) cars * i / batches);
+            final int to = (int) ((long) cars * (i + 1) / batches);
+            tick.add(new Callable<Integer>() {
+                public Integer call() {
+                    int driving = 0;
+                    for (int car = from; car < to; car++) {
+                        CarMachine machine = machines.get(car);
+                        world.collisions(machine.getState());
+                        if (!parked[car]) {
+                            try {
+                                if (machine.step(runs.get(car).program)) {
+                                    driving++;
+                                } else {
+                                    parked[car] = true;
+                                }
+                            } catch (ProcessingException e) {
+                                errors[car] = describe(e);
+                                parked[car] = true;
+                            }
+                        }
+                        world.publish(machine.getState());
+                    }
+                    return driving;
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(batches);
+        try {
+            int driving;
+            do {
+                driving = 0;
+                for (Future<Integer> batch : pool.invokeAll(tick)) {
+                    try {
+                        driving += batch.get();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e.getCause());
+                    }
+                }
+                world.advance();
+            } while (driving > 0);
+        } finally {
+            pool.shutdown();
+        }
+        // where the last tick left everyone
+        for (CarMachine machine : machines) {
+            world.collisions(machine.getState());
+        }
+        List<Result> results = new ArrayList<Result>(cars);
+        for (int i = 0; i < cars; i++) {
+            CarMachine machine = machines.get(i);
+            results.add(new Result(runs.get(i).name, machine.getState(), machine.getExecuted(), errors[i]));
+        }
+        return results;
+    }
+
+    static Result execute(Run run, CarMachine machine) {
+        setRegisters(run, machine);
+        String error = null;
+        try {
+            machine.run(run.program);
+        } catch (ProcessingException e) {
+            error = describe(e);
+        }
+        return new Result(run.name, machine.getState(), machine.getExecuted(), error);
+    }
+
+    private static void setRegisters(Run run, CarMachine machine) {
+        for (int i = 0; i < run.registers.length; i++) {
+            machine.setRegister(run.registers[i], run.values[i]);
+        }
+    }
+
+    private static String describe(ProcessingException e) {
+        return e.errors() == null ? "processing error" : e.errors().generateErrorReport().trim();
+    }
+
+    /** Parses one parameter line such as "$t0=5 $a1=-3" into a run of program. */
+    public static Run parameterized(String name, CarProgram program, String line) {
+        StringTokenizer tokens = new StringTokenizer(line, " ,\t");
+        int[] registers = new int[tokens.countTokens()];
+        int[] values = new int[registers.length];
+        for (int i = 0; i < registers.length; i++) {
+            String token = tokens.nextToken();
+            int eq = token.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected $register=value but found \"" + token + "\"");
+            }
+            String register = token.substring(0, eq);
+            registers[i] = RegisterFile.getNumber(register.startsWith("$") ? register : "$" + register);
+            if (registers[i] < 0) {
+                throw new IllegalArgumentException("unknown register \"" + register + "\"");
+            }
+            values[i] = Integer.decode(token.substring(eq + 1));
+        }
+        return new Run(name, program, registers, values);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("usage: CarFleet scriptsDir | CarFleet drive.asm params.txt");
+            return;
+        }
+        List<Run> runs = new ArrayList<Run>();
+        File source = new File(args[0]);
+        if (args.length == 1) {
+            File[] scripts = source.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".asm");
+                }
+            });
+            if (scripts == null) {
+                System.out.println(args[0] + " is not a directory");
+                return;
+            }
+            Arrays.sort(scripts);
+            for (File script : scripts) {
+                runs.add(new Run(script.getName(), CarProgram.assemble(script.getPath()), new int[0], new int[0]));
+            }
+        } else {
+            CarProgram program = CarProgram.assemble(source.getPath());
+            BufferedReader in = new BufferedReader(new FileReader(args[1]));
+            try {
+                String line;
+                int number = 0;
+                while ((line = in.readLine()) != null) {
+                    number++;
+                    if (line.trim().length() > 0 && !line.trim().startsWith("#")) {
+                        runs.add(parameterized(source.getName() + "#" + number, program, line));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        CarFleet fleet = new CarFleet();
+        long start = System.nanoTime();
+        CarWorld world = Boolean.getBoolean("car.world") ? new CarWorld(runs.size()) : null;
+        List<Result> results;
+        try {
+            results = fleet.runAll(runs, world);
+        } finally {
+            CarProfiler.finish();
+        }
+        long nanos = System.nanoTime() - start;
+        long executed = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            executed += result.executed;
+        }
+        System.out.println(results.size() + " runs, " + executed + " instructions in "
+                + (nanos / 1000000) + " ms on " + fleet.threads + " threads");
+    }
+}
@@ -0,0 +1,513 @@
+package mars.mips.instructions.customlangs;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.simulator.Exceptions;
+import java.io.IOException;
+
+/**
+ * Headless engine for Car Assembly. Runs a {@link CarProgram} in a plain loop
+ * against its own registers, memory and car, without the MARS GUI, backstepping
+ * or register observers. The car semantics are the ones in {@link CarState}, so
+ * a run ends in the same car state as the standard simulator.
+ *
+ * Usage: java mars.mips.instructions.customlangs.CarMachine drive.asm
+ * (add -Dcar.trace=drive.trace to record the run for CarTraceReplay)
+ */
+public class CarMachine {
+
+    private final int[] regs = new int[32];
+    private final CarMemory memory;
+    private final CarState state;
+    private final int carBase = CarDevice.getBaseAddress();
+    private long executed;
+    // false until a program's data segment is in memory; machines from snapshots start with theirs
+    private boolean loaded;
+    // the program with the words stored into its text so far, and the program it was rewritten from
+    private CarProgram rewritten;
+    private CarProgram rewrittenFrom;
+    // where step() picks up: the op after the last tick, the hardware loop it was in
+    // and the ticks still to go of a drive
+    private int resumeAt;
+    private int resumeLoopStart;
+    private int resumeLoopEnd = -1;
+    private int resumeLoopReg;
+    private int driveLeft;
+    private int driveTotal;
+
+    public CarMachine() {
+        this(new CarState(new CarTelemetry(CarTelemetry.SILENT)));
+    }
+
+    public CarMachine(CarState state) {
+        this.state = state;
+        memory = new CarMemory();
+        regs[28] = Memory.globalPointer;
+        regs[29] = Memory.stackPointer;
+    }
+
+    /** A machine starting where snapshot left off, sharing its memory pages until it writes them. */
+    public CarMachine(CarSnapshot snapshot) {
+        this(snapshot, new CarState(new CarTelemetry(CarTelemetry.SILENT)));
+    }
+
+    public CarMachine(CarSnapshot snapshot, CarState state) {
+        this.state = state;
+        memory = new CarMemory(snapshot.memory);
+        System.arraycopy(snapshot.regs, 0, regs, 0, regs.length);
+        state.copyFrom(snapshot.car);
+        executed = snapshot.executed;
+        rewritten = snapshot.rewritten;
+        rewrittenFrom = snapshot.rewrittenFrom;
+        loaded = true;
+    }
+
+    public int getRegister(int r) {
+        return regs[r];
+    }
+
+    public void setRegister(int r, int value) {
+        if (r != 0) {
+            regs[r] = value;
+        }
+    }
+
+    public CarState getState() {
+        return state;
+    }
+
+    public CarMemory getMemory() {
+        return memory;
+    }
+
+    /** Instructions executed so far. */
+    public long getExecuted() {
+        return executed;
+    }
+
+    /** Captures registers, car and memory; memory pages written from now on are copied first. */
+    public CarSnapshot snapshot() {
+        return new CarSnapshot(regs, state, memory.snapshot(), executed, rewritten, rewrittenFrom);
+    }
+
+    /** Goes back to snapshot; cheapest for the snapshot this machine took or was forked from last. */
+    public void restore(CarSnapshot snapshot) {
+        System.arraycopy(snapshot.regs, 0, regs, 0, regs.length);
+        state.copyFrom(snapshot.car);
+        memory.restore(snapshot.memory);
+        executed = snapshot.executed;
+        rewritten = snapshot.rewritten;
+        rewrittenFrom = snapshot.rewrittenFrom;
+        loaded = true;
+    }
+
+    /** A new machine continuing from here; this one and the fork share memory until either writes. */
+    public CarMachine fork() {
+        return new CarMachine(snapshot());
+    }
+
+    /** Puts program's initial data segment back; words past the program's data are cleared to 0. */
+    public void load(CarProgram program) {
+        int[] data = program.getData();
+        memory.load(Memory.dataBaseAddress, data);
+        memory.clear(Memory.dataBaseAddress + 4 * data.length, Memory.heapBaseAddress);
+        loaded = true;
+    }
+
+    /**
+     * Runs program from its first instruction. A fresh machine gets the program's
+     * data segment loaded first; after that, and on machines made from snapshots,
+     * memory is left as it is unless load(program) is called. A sw into the
+     * program's text replaces that instruction for this machine only (and its
+     * snapshots and forks); lw from the text reads the current words.
+     */
+    public void run(CarProgram source) throws ProcessingException {
+        resumeAt = 0;
+        resumeLoopEnd = -1;
+        driveLeft = 0;
+        execute(source, false);
+    }
+
+    /**
+     * Runs source on a shared road one tick at a time: carries on from where the
+     * last call stopped up to and including the next tick (or the next tick of a
+     * drive) and returns true, or returns false when the program ends first. The
+     * first call starts source the same way run does, and so does the call after
+     * one that returned false.
+     */
+    public boolean step(CarProgram source) throws ProcessingException {
+        if (driveLeft > 0) {
+            driveLeft--;
+            state.driveTick(driveTotal, driveLeft == 0);
+            return true;
+        }
+        return execute(source, true);
+    }
+
+    private boolean execute(CarProgram source, boolean stepping) throws ProcessingException {
+        if (!loaded) {
+            load(source);
+        }
+        CarProgram program = rewrittenFrom == source ? rewritten : source;
+        int[] code = program.code;
+        final int[] r = regs;
+        final CarState car = state;
+        final int end = code.length;
+        final long base = executed;
+        final boolean profile = CarProfiler.isEnabled();
+        final CarProfiler.Slot[] slots = profile ? profilerSlots() : null;
+        long count = 0;
+        // hardware loop for a straight-line repeat body: after the instruction at
+        // loopEnd, count down loopReg and go back to loopStart without dispatching the repeat
+        int loopStart = resumeLoopStart;
+        int loopEnd = resumeLoopEnd;
+        int loopReg = resumeLoopReg;
+        int from = resumeAt;
+        resumeAt = 0;
+        resumeLoopEnd = -1;
+        boolean ticked = false;
+        try {
+            for (int p = from; p < end; p += CarProgram.OP_STRIDE) {
+                int a = code[p + 1];
+                int b = code[p + 2];
+                int c = code[p + 3];
+                car.setStep(base + count);
+                count++;
+                final int op = code[p];
+                final long started = profile ? System.nanoTime() : 0;
+                switch (op) {
+                    case CarProgram.OP_ADD:
+                        r[a] = r[b] + r[c];
+                        break;
+                    case CarProgram.OP_SUB:
+                        r[a] = r[b] - r[c];
+                        break;
+                    case CarProgram.OP_MUL:
+                        r[a] = r[b] * r[c];
+                        break;
+                    case CarProgram.OP_ADDI: {
+                        int add1 = r[b];
+                        int sum = add1 + c;
+                        if ((add1 >= 0 && c >= 0 && sum < 0) || (add1 < 0 && c < 0 && sum >= 0)) {
+                            CarProfiler.clamp(CarProfiler.ADDI_OVERFLOW);
+                            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                                    "arithmetic overflow", Exceptions.ARITHMETIC_OVERFLOW_EXCEPTION);
+                        }
+                        r[a] = sum;
+                        break;
+                    }
+                    case CarProgram.OP_MOVE:
+                        r[a] = r[b];
+                        break;
+                    case CarProgram.OP_DIV:
+                        if (r[c] == 0) {
+                            r[a] = 0;
+                            CarProfiler.clamp(CarProfiler.DIV_BY_ZERO);
+                        } else {
+                            r[a] = r[b] / r[c];
+                        }
+                        break;
+                    case CarProgram.OP_AND:
+                        r[a] = r[b] & r[c];
+                        break;
+                    case CarProgram.OP_OR:
+                        r[a] = r[b] | r[c];
+                        break;
+                    case CarProgram.OP_XOR:
+                        r[a] = r[b] ^ r[c];
+                        break;
+                    case CarProgram.OP_SLT:
+                        r[a] = r[b] < r[c] ? 1 : 0;
+                        break;
+                    case CarProgram.OP_LW:
+                        r[a] = load(program, p, r[c] + b);
+                        break;
+                    case CarProgram.OP_SW: {
+                        int address = r[c] + b;
+                        int index = program.textIndex(address);
+                        if (index < 0) {
+                            store(program, p, address, r[a]);
+                            break;
+                        }
+                        try {
+                            program = program.rewrite(index, r[a]);
+                        } catch (IllegalArgumentException e) {
+                            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                                    e.getMessage(), Exceptions.ADDRESS_EXCEPTION_STORE);
+                        }
+                        rewritten = program;
+                        rewrittenFrom = source;
+                        code = program.code;
+                        // the rewritten word may sit inside the body being looped
+                        loopEnd = -1;
+                        break;
+                    }
+                    case CarProgram.OP_THROTTLE:
+                        car.throttle(r[a]);
+                        break;
+                    case CarProgram.OP_SETSPD:
+                        car.setSpeed(r[a]);
+                        break;
+                    case CarProgram.OP_STEER:
+                        car.steer(r[a]);
+                        break;
+                    case CarProgram.OP_SETSTEER:
+                        car.setSteer(r[a]);
+                        break;
+                    case CarProgram.OP_EBRAKE:
+                        car.ebrake();
+                        break;
+                    case CarProgram.OP_LIGHTS:
+                        car.lights(r[a]);
+                        break;
+                    case CarProgram.OP_AC:
+                        car.ac(r[a]);
+                        break;
+                    case CarProgram.OP_SEAT:
+                        car.seat(r[a]);
+                        break;
+                    case CarProgram.OP_POPHOOD:
+                        car.popHood();
+                        break;
+                    case CarProgram.OP_FILLGAS:
+                        car.fillGas(r[a]);
+                        break;
+                    case CarProgram.OP_THROTTLEI:
+                        car.throttle(a);
+                        break;
+                    case CarProgram.OP_SETSPDI:
+                        car.setSpeed(a);
+                        break;
+                    case CarProgram.OP_STEERI:
+                        car.steer(a);
+                        break;
+                    case CarProgram.OP_SETSTEERI:
+                        car.setSteer(a);
+                        break;
+                    case CarProgram.OP_LIGHTSI:
+                        car.lights(a);
+                        break;
+                    case CarProgram.OP_ACI:
+                        car.ac(a);
+                        break;
+                    case CarProgram.OP_SEATI:
+                        car.seat(a);
+                        break;
+                    case CarProgram.OP_FILLGASI:
+                        car.fillGas(a);
+                        break;
+                    case CarProgram.OP_TICK:
+                        car.tick();
+                        ticked = stepping;
+                        break;
+                    case CarProgram.OP_DRIVE:
+                        if (stepping && r[a] > 0) {
+                            driveTotal = r[a];
+                            driveLeft = r[a] - 1;
+                            car.driveTick(driveTotal, driveLeft == 0);
+                            ticked = true;
+                        } else {
+                            car.drive(r[a]);
+                        }
+                        break;
+                    case CarProgram.OP_SENSE:
+                        r[a] = sense(program, p, b);
+                        break;
+                    case CarProgram.OP_PROXIMITY:
+                        r[a] = car.proximity();
+                        break;
+                    case CarProgram.OP_VTHROTTLE:
+                        updateRecords(program, p, r[a], r[b], CarState.SPEED, r[c]);
+                        break;
+                    case CarProgram.OP_VFILLGAS:
+                        updateRecords(program, p, r[a], r[b], CarState.GAS, r[c]);
+                        break;
+                    case CarProgram.OP_BEQ:
+                        if (r[a] == r[b]) {
+                            p = c - CarProgram.OP_STRIDE;
+                        }
+                        break;
+                    case CarProgram.OP_BNE:
+                        if (r[a] != r[b]) {
+                            p = c - CarProgram.OP_STRIDE;
+                        }
+                        break;
+                    case CarProgram.OP_J:
+                        p = a - CarProgram.OP_STRIDE;
+                        break;
+                    case CarProgram.OP_REPEAT:
+                        if (--r[a] > 0) {
+                            if (c != 0 && !profile) {
+                                loopStart = b;
+                                loopEnd = p - CarProgram.OP_STRIDE;
+                                loopReg = a;
+                            }
+                            p = b - CarProgram.OP_STRIDE;
+                        }
+                        break;
+                }
+                r[0] = 0;
+                if (profile) {
+                    slots[op].record(System.nanoTime() - started);
+                }
+                if (p == loopEnd) {
+                    count++;
+                    if (--r[loopReg] > 0) {
+                        p = loopStart - CarProgram.OP_STRIDE;
+                    } else {
+                        p += CarProgram.OP_STRIDE;
+                        loopEnd = -1;
+                    }
+                }
+                if (ticked) {
+                    resumeAt = p + CarProgram.OP_STRIDE;
+                    resumeLoopStart = loopStart;
+                    resumeLoopEnd = loopEnd;
+                    resumeLoopReg = loopReg;
+                    return true;
+                }
+            }
+        } finally {
+            executed += count;
+        }
+        return false;
+    }
+
+    private static CarProfiler.Slot[] profilerSlots;
+
+    private static synchronized CarProfiler.Slot[] profilerSlots() {
+        if (profilerSlots == null) {
+            profilerSlots = new CarProfiler.Slot[CarProgram.opCount()];
+            for (int op = 0; op < profilerSlots.length; op++) {
+                profilerSlots[op] = CarProfiler.slot(CarProgram.mnemonic(op));
+            }
+        }
+        return profilerSlots;
+    }
+
+    private int sense(CarProgram program, int p, int channel) throws ProcessingException {
+        try {
+            return state.sense(channel);
+        } catch (IllegalArgumentException e) {
+            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE), e.getMessage());
+        }
+    }
+
+    /**
+     * vthrottle and vfillgas: applies the field's rule to count car records of
+     * RECORD_WORDS words starting at base. Records are updated straight in the
+     * memory pages, one tight strided loop per page; only records overlapping the
+     * car device go through load/store.
+     */
+    private void updateRecords(CarProgram program, int p, int base, int count, int field, int value)
+            throws ProcessingException {
+        if (count <= 0) {
+            return;
+        }
+        if ((base & 3) != 0) {
+            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                    "address not aligned on word boundary", Exceptions.ADDRESS_EXCEPTION_STORE);
+        }
+        long first = (base & 0xFFFFFFFFL) + 4 * field;
+        long last = first + (long) (count - 1) * CarState.RECORD_WORDS * 4;
+        if (last > 0xFFFFFFFFL) {
+            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                    "car records run past the end of memory", Exceptions.ADDRESS_EXCEPTION_STORE);
+        }
+        long device = carBase & 0xFFFFFFFFL;
+        if (last >= device && first < device + CarState.FIELDS * 4) {
+            for (int i = 0; i < count; i++) {
+                int address = (int) (first + (long) i * CarState.RECORD_WORDS * 4);
+                int old = load(program, p, address);
+                store(program, p, address, field == CarState.SPEED
+                        ? CarState.throttled(old, value) : CarState.filled(old, value));
+            }
+            return;
+        }
+        int address = (int) first;
+        int left = count;
+        while (left > 0) {
+            int[] page = memory.page(address);
+            int k = (address >>> 2) & (CarMemory.PAGE_WORDS - 1);
+            int n = Math.min(left, (CarMemory.PAGE_WORDS - 1 - k) / CarState.RECORD_WORDS + 1);
+            int end = k + n * CarState.RECORD_WORDS;
+            if (field == CarState.SPEED) {
+                for (; k < end; k += CarState.RECORD_WORDS) {
+                    page[k] = CarState.throttled(page[k], value);
+                }
+            } else {
+                for (; k < end; k += CarState.RECORD_WORDS) {
+                    page[k] = CarState.filled(page[k], value);
+                }
+            }
+            address += n * CarState.RECORD_WORDS * 4;
+            left -= n;
+        }
+    }
+
+    private int load(CarProgram program, int p, int address) throws ProcessingException {
+        if ((address & 3) != 0) {
+            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                    "address not aligned on word boundary", Exceptions.ADDRESS_EXCEPTION_LOAD);
+        }
+        int offset = address - carBase;
+        if (offset >= 0 && offset < CarState.FIELDS * 4) {
+            return state.get(offset >> 2);
+        }
+        int index = program.textIndex(address);
+        if (index >= 0) {
+            return program.words[index];
+        }
+        return memory.getWord(address);
+    }
+
+    private void store(CarProgram program, int p, int address, int value) throws ProcessingException {
+        if ((address & 3) != 0) {
+            throw new ProcessingException(program.statement(p / CarProgram.OP_STRIDE),
+                    "address not aligned on word boundary", Exceptions.ADDRESS_EXCEPTION_STORE);
+        }
+        int offset = address - carBase;
+        if (offset >= 0 && offset < CarState.FIELDS * 4) {
+            state.set(offset >> 2, value);
+            state.commit();
+            return;
+        }
+        memory.setWord(address, value);
+    }
+
+    public static void main(String[] args) throws ProcessingException, IOException {
+        if (args.length != 1) {
+            System.out.println("usage: CarMachine drive.asm");
+            return;
+        }
+        CarProgram program = CarProgram.assemble(args[0]);
+        CarMachine machine = new CarMachine();
+        String trace = System.getProperty("car.trace");
+        CarTraceRecorder recorder = trace == null ? null : new CarTraceRecorder(trace, machine.getState());
+        long start = System.nanoTime();
+        try {
+            machine.run(program);
+        } finally {
+            if (recorder != null) {
+                recorder.close();
+            }
+            CarProfiler.finish();
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(describe(machine.getState()));
+        System.out.println(machine.getExecuted() + " instructions in " + (nanos / 1000) + " us");
+    }
+
+    public static String describe(CarState car) {
+        return "speed=" + car.get(CarState.SPEED)
+                + " steer=" + car.get(CarState.STEER)
+                + " lights=0x" + Integer.toHexString(car.get(CarState.LIGHTS))
+                + " ac=" + car.get(CarState.AC)
+                + " seat=" + car.get(CarState.SEAT)
+                + " status=0x" + Integer.toHexString(car.get(CarState.STATUS))
+                + " gas=" + car.get(CarState.GAS)
+                + " heading=" + car.get(CarState.HEADING)
+                + " x=" + car.get(CarState.POS_X)
+                + " y=" + car.get(CarState.POS_Y)
+                + " ticks=" + car.get(CarState.TICKS);
+    }
+}
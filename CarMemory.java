@@ -0,0 +1,171 @@
+package mars.mips.instructions.customlangs;
+import java.util.Arrays;
+
+/**
+ * Word-addressed memory for the headless engine. Storage is allocated a 4KB
+ * page at a time through a two level table, so a program that touches a few
+ * words costs a few pages no matter where they are. Unwritten words read as 0.
+ * Addresses must already be word aligned.
+ *
+ * Pages are copy-on-write across snapshots: {@link #snapshot()} freezes the
+ * pages in use, and the first write to a frozen page afterwards copies it. Any
+ * number of memories forked from one snapshot share its pages until they write
+ * to them, and restoring the latest snapshot only puts back the pages written
+ * since it was taken.
+ */
+public class CarMemory {
+
+    public static final int PAGE_WORDS = 1024;
+    private static final int TABLE_SIZE = 1024;
+
+    /** Frozen page tables; never written once taken. */
+    public static final class Snapshot {
+        private final int[][][] directory = new int[TABLE_SIZE][][];
+
+        private int[] page(int top, int index) {
+            int[][] table = directory[top];
+            return table == null ? null : table[index];
+        }
+    }
+
+    private final int[][][] directory = new int[TABLE_SIZE][][];
+    // the snapshot this memory was last taken as, restored to or forked from
+    private Snapshot base;
+    // numbers (address >>> 12) of the pages allocated or copied since base
+    private int[] dirty = new int[16];
+    private int dirtyCount;
+
+    public CarMemory() {
+    }
+
+    /** A memory with the contents of snapshot, sharing its pages until they are written. */
+    public CarMemory(Snapshot snapshot) {
+        copyTables(snapshot);
+        base = snapshot;
+    }
+
+    public int getWord(int address) {
+        int[][] table = directory[address >>> 22];
+        if (table == null) {
+            return 0;
+        }
+        int[] page = table[(address >>> 12) & (TABLE_SIZE - 1)];
+        if (page == null) {
+            return 0;
+        }
+        return page[(address >>> 2) & (PAGE_WORDS - 1)];
+    }
+
+    public void setWord(int address, int value) {
+        page(address)[(address >>> 2) & (PAGE_WORDS - 1)] = value;
+    }
+
+    /**
+     * The page holding address, allocated or copied out of the last snapshot if
+     * needed so it can be written; word i of the page is at (address & ~0xfff) + 4*i.
+     */
+    public int[] page(int address) {
+        int top = address >>> 22;
+        int[][] table = directory[top];
+        if (table == null) {
+            table = new int[TABLE_SIZE][];
+            directory[top] = table;
+        }
+        int index = (address >>> 12) & (TABLE_SIZE - 1);
+        int[] page = table[index];
+        if (page == null || (base != null && page == base.page(top, index))) {
+            page = page == null ? new int[PAGE_WORDS] : page.clone();
+            table[index] = page;
+            if (dirtyCount == dirty.length) {
+                int[] grown = new int[dirty.length * 2];
+                System.arraycopy(dirty, 0, grown, 0, dirtyCount);
+                dirty = grown;
+            }
+            dirty[dirtyCount++] = address >>> 12;
+        }
+        return page;
+    }
+
+    /**
+     * Copies words into memory starting at address, zeros included. A zero only
+     * costs a page when the word it replaces is not already 0.
+     */
+    public void load(int address, int[] words) {
+        for (int i = 0; i < words.length; i++) {
+            int at = address + 4 * i;
+            if (words[i] != 0 || getWord(at) != 0) {
+                setWord(at, words[i]);
+            }
+        }
+    }
+
+    /** Sets the words from address up to (not including) end to 0, copying only pages that hold something there. */
+    public void clear(int address, int end) {
+        while (address - end < 0) {
+            int pageEnd = (address & ~0xfff) + 4 * PAGE_WORDS;
+            int stop = pageEnd - end < 0 ? pageEnd : end;
+            int[][] table = directory[address >>> 22];
+            int[] page = table == null ? null : table[(address >>> 12) & (TABLE_SIZE - 1)];
+            if (page != null) {
+                int from = (address >>> 2) & (PAGE_WORDS - 1);
+                int to = from + ((stop - address) >>> 2);
+                for (int i = from; i < to; i++) {
+                    if (page[i] != 0) {
+                        Arrays.fill(page(address), from, to, 0);
+                        break;
+                    }
+                }
+            }
+            address = stop;
+        }
+    }
+
+    /** Pages written since the last snapshot, restore or fork. */
+    public int getDirtyPages() {
+        return dirtyCount;
+    }
+
+    /**
+     * Freezes the current contents. Costs one copy of each page table in use,
+     * or nothing if no page was written since the last snapshot.
+     */
+    public Snapshot snapshot() {
+        if (base != null && dirtyCount == 0) {
+            return base;
+        }
+        Snapshot snapshot = new Snapshot();
+        for (int top = 0; top < TABLE_SIZE; top++) {
+            if (directory[top] != null) {
+                snapshot.directory[top] = directory[top].clone();
+            }
+        }
+        base = snapshot;
+        dirtyCount = 0;
+        return snapshot;
+    }
+
+    /**
+     * Puts the contents of snapshot back. For the snapshot last taken, restored
+     * or forked from, only the pages written since are touched; any other
+     * snapshot costs one copy of each of its page tables.
+     */
+    public void restore(Snapshot snapshot) {
+        if (snapshot == base) {
+            for (int i = 0; i < dirtyCount; i++) {
+                int number = dirty[i];
+                directory[number >>> 10][number & (TABLE_SIZE - 1)] = base.page(number >>> 10, number & (TABLE_SIZE - 1));
+            }
+        } else {
+            copyTables(snapshot);
+            base = snapshot;
+        }
+        dirtyCount = 0;
+    }
+
+    private void copyTables(Snapshot snapshot) {
+        for (int top = 0; top < TABLE_SIZE; top++) {
+            int[][] table = snapshot.directory[top];
+            directory[top] = table == null ? null : table.clone();
+        }
+    }
+}
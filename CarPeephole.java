@@ -0,0 +1,192 @@
+package mars.mips.instructions.customlangs;
+import mars.mips.hardware.RegisterFile;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Source level peephole pass that fuses the constant-then-use pattern
+ *
+ *     addi $t1, $zero, 60
+ *     setspd $t1
+ *
+ * into the immediate form "setspdi 60". A pair is only fused when the register
+ * is provably overwritten later in the same straight run of code before anything
+ * reads it, so registers and car state end the same either way. The fused
+ * instruction takes the addi's line and the car instruction's line is left
+ * blank, which keeps line numbers in error messages pointing at the original.
+ *
+ * Usage: java mars.mips.instructions.customlangs.CarPeephole in.asm [out.asm]
+ */
+public class CarPeephole {
+
+    private static final Map<String, String> IMMEDIATE_FORMS = new HashMap<String, String>();
+    static {
+        IMMEDIATE_FORMS.put("throttle", "throttlei");
+        IMMEDIATE_FORMS.put("setspd", "setspdi");
+        IMMEDIATE_FORMS.put("steer", "steeri");
+        IMMEDIATE_FORMS.put("setsteer", "setsteeri");
+        IMMEDIATE_FORMS.put("lights", "lightsi");
+        IMMEDIATE_FORMS.put("ac", "aci");
+        IMMEDIATE_FORMS.put("seat", "seati");
+        IMMEDIATE_FORMS.put("fillgas", "fillgasi");
+    }
+
+    // instructions whose first operand is written and whose other operands are read
+    private static final Set<String> WRITES_FIRST = new HashSet<String>(Arrays.asList(
+            "add", "sub", "mul", "addi", "move", "div", "and", "or", "xor", "slt", "lw", "sense", "proximity"));
+
+    // everything else here only reads its registers and falls through to the next line
+    private static final Set<String> READS_ONLY = new HashSet<String>(Arrays.asList(
+            "sw", "throttle", "setspd", "steer", "setsteer", "ebrake", "lights", "ac", "seat",
+            "pophood", "fillgas", "throttlei", "setspdi", "steeri", "setsteeri", "lightsi",
+            "aci", "seati", "fillgasi", "tick", "drive", "vthrottle", "vfillgas"));
+
+    private int fused;
+
+    /** Number of pairs fused by the last call to optimize. */
+    public int getFused() {
+        return fused;
+    }
+
+    public List<String> optimize(List<String> source) {
+        List<String> lines = new ArrayList<String>(source);
+        fused = 0;
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            String[] load = tokens(lines.get(i));
+            String[] use = tokens(lines.get(i + 1));
+            if (load.length != 4 || !load[0].equalsIgnoreCase("addi") || register(load[2]) != 0
+                    || use.length != 2 || !IMMEDIATE_FORMS.containsKey(use[0].toLowerCase())
+                    || hasLabel(lines.get(i + 1))) {
+                continue;
+            }
+            int reg = register(load[1]);
+            if (reg <= 0 || register(use[1]) != reg || !overwrittenBeforeRead(lines, i + 2, reg)) {
+                continue;
+            }
+            String line = lines.get(i);
+            String label = hasLabel(line) ? line.substring(0, line.indexOf(':') + 1) + " " : "";
+            lines.set(i, label + IMMEDIATE_FORMS.get(use[0].toLowerCase()) + " " + load[3]);
+            lines.set(i + 1, "");
+            fused++;
+            i++;
+        }
+        return lines;
+    }
+
+    private static boolean overwrittenBeforeRead(List<String> lines, int from, int reg) {
+        for (int i = from; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (hasLabel(line)) {
+                return false;
+            }
+            String[] t = tokens(line);
+            if (t.length == 0) {
+                continue;
+            }
+            if (t[0].startsWith(".")) {
+                return false;
+            }
+            String op = t[0].toLowerCase();
+            if (WRITES_FIRST.contains(op)) {
+                for (int k = 2; k < t.length; k++) {
+                    if (register(t[k]) == reg) {
+                        return false;
+                    }
+                }
+                if (t.length > 1 && register(t[1]) == reg) {
+                    return true;
+                }
+            } else if (READS_ONLY.contains(op)) {
+                for (int k = 1; k < t.length; k++) {
+                    if (register(t[k]) == reg) {
+                        return false;
+                    }
+                }
+            } else {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLabel(String line) {
+        int comment = line.indexOf('#');
+        int colon = line.indexOf(':');
+        return colon >= 0 && (comment < 0 || colon < comment);
+    }
+
+    /** Operator and operands of a line, without label or comment; "-8($t2)" gives "-8" and "$t2". */
+    private static String[] tokens(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        if (hasLabel(line)) {
+            line = line.substring(line.indexOf(':') + 1);
+        }
+        StringTokenizer st = new StringTokenizer(line, " ,\t()");
+        String[] t = new String[st.countTokens()];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = st.nextToken();
+        }
+        return t;
+    }
+
+    private static int register(String token) {
+        return token.startsWith("$") ? RegisterFile.getNumber(token) : -1;
+    }
+
+    public static List<String> read(String filename) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    public static void write(List<String> lines, String filename) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(filename));
+        try {
+            for (String line : lines) {
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Writes the fused version of filename to a temporary file and returns its path, or filename if that fails. */
+    static String fuseToTempFile(String filename) {
+        try {
+            File temp = File.createTempFile("carasm", ".asm");
+            temp.deleteOnExit();
+            write(new CarPeephole().optimize(read(filename)), temp.getPath());
+            return temp.getPath();
+        } catch (IOException e) {
+            return filename;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("usage: CarPeephole in.asm [out.asm]");
+            return;
+        }
+        CarPeephole peephole = new CarPeephole();
+        List<String> lines = peephole.optimize(read(args[0]));
+        if (args.length == 2) {
+            write(lines, args[1]);
+            System.out.println("fused " + peephole.getFused() + " pairs into " + args[1]);
+        } else {
+            for (String line : lines) {
+                System.out.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package mars.mips.instructions.customlangs;
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built-in instrumentation for Car Assembly: how often each instruction ran,
+ * how long it took in total, and how often a value got clamped or trapped.
+ * Counters are LongAdders so fleet runs on many threads do not fight over them.
+ *
+ * Off unless started with -Dcar.profile=true or switched on from the Car Profiler
+ * tool; while off, instructions only pay for reading one volatile flag. With
+ * -Dcar.profile.out=profile.json the counters are written out as JSON by finish(),
+ * which CarMachine and CarFleet call when they are done and the Car Profiler tool
+ * calls when a MARS run stops. A shutdown hook writes anything still unreported,
+ * for runs that end some other way.
+ */
+public class CarProfiler {
+
+    //CLAMP EVENTS
+    public static final int THROTTLE_FLOOR = 0;
+    public static final int SETSPD_FLOOR = 1;
+    public static final int STEER_SATURATED = 2;
+    public static final int FILLGAS_CAPPED = 3;
+    public static final int FILLGAS_EMPTY = 4;
+    public static final int DIV_BY_ZERO = 5;
+    public static final int ADDI_OVERFLOW = 6;
+    public static final int OUT_OF_GAS = 7;
+    public static final String[] CLAMP_NAMES = {
+            "throttle_floor", "setspd_floor", "steer_saturated", "fillgas_capped",
+            "fillgas_empty", "div_by_zero", "addi_overflow", "out_of_gas"};
+
+    public static class Slot {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        public void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("car.profile");
+    private static final Map<String, Slot> slots = new TreeMap<String, Slot>();
+    private static final LongAdder[] clamps = new LongAdder[CLAMP_NAMES.length];
+    private static final String out = System.getProperty("car.profile.out");
+    static {
+        for (int i = 0; i < clamps.length; i++) {
+            clamps[i] = new LongAdder();
+        }
+        if (out != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    // a finish() already wrote everything up to its reset
+                    if (hasCounts()) {
+                        finish();
+                    }
+                }
+            }));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** The counters for a mnemonic; look it up once and keep it. */
+    public static Slot slot(String mnemonic) {
+        String name = mnemonic.toLowerCase();
+        synchronized (slots) {
+            Slot slot = slots.get(name);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+    }
+
+    public static void clamp(int event) {
+        if (enabled) {
+            clamps[event].increment();
+        }
+    }
+
+    public static long getClampCount(int event) {
+        return clamps[event].sum();
+    }
+
+    /** Mnemonics seen so far, in alphabetical order, with their counters. */
+    public static Map<String, Slot> getSlots() {
+        synchronized (slots) {
+            return new TreeMap<String, Slot>(slots);
+        }
+    }
+
+    public static void reset() {
+        synchronized (slots) {
+            for (Slot slot : slots.values()) {
+                slot.count.reset();
+                slot.nanos.reset();
+            }
+        }
+        for (LongAdder clamp : clamps) {
+            clamp.reset();
+        }
+    }
+
+    /** True when anything was counted since the last reset. */
+    public static boolean hasCounts() {
+        for (Slot slot : getSlots().values()) {
+            if (slot.getCount() != 0) {
+                return true;
+            }
+        }
+        for (LongAdder clamp : clamps) {
+            if (clamp.sum() != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * End of a run: writes the counters to the car.profile.out file, if one was
+     * given, and resets them so the next run starts from zero.
+     */
+    public static synchronized void finish() {
+        if (out != null) {
+            try {
+                dump(out);
+            } catch (IOException e) {
+                System.err.println("car profile not written: " + e);
+            }
+        }
+        reset();
+    }
+
+    public static void dump(String filename) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename));
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void dump(Writer out) throws IOException {
+        out.write("{\n  \"instructions\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Slot> entry : getSlots().entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.getCount() == 0) {
+                continue;
+            }
+            out.write(separator + "    \"" + entry.getKey() + "\": {\"count\": " + slot.getCount()
+                    + ", \"nanos\": " + slot.getNanos() + "}");
+            separator = ",\n";
+        }
+        out.write("\n  },\n  \"clamps\": {");
+        for (int i = 0; i < CLAMP_NAMES.length; i++) {
+            out.write((i == 0 ? "\n" : ",\n") + "    \"" + CLAMP_NAMES[i] + "\": " + clamps[i].sum());
+        }
+        out.write("\n  }\n}\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,201 @@
+package mars.tools;
+import mars.mips.instructions.customlangs.CarProfiler;
+import mars.simulator.Simulator;
+import mars.simulator.SimulatorNotice;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+
+/**
+ * MARS tool showing the Car Assembly profiler: executions and time per
+ * instruction, and how often values were clamped. The table refreshes twice a
+ * second while the tool is open. When a MARS run stops, the counters go to the
+ * -Dcar.profile.out file (if set) and start over for the next run; the tool keeps
+ * showing, and saves, the run that stopped until the next one counts something.
+ */
+public class CarProfilerTool extends AbstractMarsToolAndApplication {
+
+    private static String name = "Car Profiler";
+    private static String version = "Version 1.0";
+    private static String heading = "Where Car Assembly programs spend their time";
+
+    private final List<String> mnemonics = new ArrayList<String>();
+    // count and nanos per row, copied so a finished run survives the reset
+    private final List<long[]> rows = new ArrayList<long[]>();
+    private AbstractTableModel instructionModel;
+    private JTextArea clampArea;
+    private Timer refresh;
+    private String lastRun;
+
+    public CarProfilerTool(String title, String heading) {
+        super(title, heading);
+    }
+
+    public CarProfilerTool() {
+        super(name + ", " + version, heading);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    protected JComponent buildMainDisplayArea() {
+        instructionModel = new AbstractTableModel() {
+            private final String[] columns = {"Instruction", "Count", "Total ms", "Avg ns"};
+
+            public int getRowCount() {
+                return rows.size();
+            }
+
+            public int getColumnCount() {
+                return columns.length;
+            }
+
+            public String getColumnName(int column) {
+                return columns[column];
+            }
+
+            public Object getValueAt(int row, int column) {
+                long[] counters = rows.get(row);
+                switch (column) {
+                    case 0:
+                        return mnemonics.get(row);
+                    case 1:
+                        return counters[0];
+                    case 2:
+                        return counters[1] / 1000000;
+                    default:
+                        return counters[0] == 0 ? 0 : counters[1] / counters[0];
+                }
+            }
+        };
+        JTable table = new JTable(instructionModel);
+        table.setPreferredScrollableViewportSize(new Dimension(360, 240));
+
+        clampArea = new JTextArea(CarProfiler.CLAMP_NAMES.length, 30);
+        clampArea.setEditable(false);
+        clampArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+
+        final JCheckBox enabled = new JCheckBox("Profiling on", CarProfiler.isEnabled());
+        enabled.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                CarProfiler.setEnabled(enabled.isSelected());
+            }
+        });
+        JButton dump = new JButton("Save JSON...");
+        dump.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                saveDump();
+            }
+        });
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(enabled);
+        controls.add(dump);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(controls, BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(new JScrollPane(clampArea), BorderLayout.SOUTH);
+
+        refresh = new Timer(500, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateDisplay();
+            }
+        });
+        refresh.start();
+        Simulator.getInstance().addObserver(this);
+        return panel;
+    }
+
+    /** The counters come from CarProfiler, so connecting the tool does not observe memory. */
+    protected void addAsObserver() {
+    }
+
+    /** Only simulator notices arrive here; the tool never observes memory or registers. */
+    public void update(Observable resource, Object notice) {
+        if (!(notice instanceof SimulatorNotice)) {
+            return;
+        }
+        if (((SimulatorNotice) notice).getAction() == SimulatorNotice.SIMULATOR_STOP) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    updateDisplay();
+                    StringWriter json = new StringWriter();
+                    try {
+                        CarProfiler.dump(json);
+                        lastRun = json.toString();
+                    } catch (IOException e) {
+                        lastRun = null;
+                    }
+                    CarProfiler.finish();
+                }
+            });
+        }
+    }
+
+    protected void updateDisplay() {
+        if (instructionModel == null || (lastRun != null && !CarProfiler.hasCounts())) {
+            return;
+        }
+        lastRun = null;
+        mnemonics.clear();
+        rows.clear();
+        for (Map.Entry<String, CarProfiler.Slot> entry : CarProfiler.getSlots().entrySet()) {
+            CarProfiler.Slot slot = entry.getValue();
+            if (slot.getCount() > 0) {
+                mnemonics.add(entry.getKey());
+                rows.add(new long[]{slot.getCount(), slot.getNanos()});
+            }
+        }
+        instructionModel.fireTableDataChanged();
+        StringBuilder clamps = new StringBuilder();
+        for (int i = 0; i < CarProfiler.CLAMP_NAMES.length; i++) {
+            clamps.append(String.format("%-16s %d%n", CarProfiler.CLAMP_NAMES[i], CarProfiler.getClampCount(i)));
+        }
+        clampArea.setText(clamps.toString());
+    }
+
+    protected void reset() {
+        CarProfiler.reset();
+        lastRun = null;
+        updateDisplay();
+    }
+
+    protected void performSpecialClosingDuties() {
+        if (refresh != null) {
+            refresh.stop();
+        }
+        Simulator.getInstance().deleteObserver(this);
+    }
+
+    private void saveDump() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(theWindow) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            if (lastRun == null) {
+                CarProfiler.dump(chooser.getSelectedFile().getPath());
+            } else {
+                Writer out = new FileWriter(chooser.getSelectedFile());
+                try {
+                    out.write(lastRun);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(theWindow, "Could not save profile: " + e.getMessage());
+        }
+    }
+}
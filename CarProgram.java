@@ -0,0 +1,377 @@
+package mars.mips.instructions.customlangs;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.BasicInstruction;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An assembled Car Assembly program translated once for {@link CarMachine}.
+ * Every statement becomes OP_STRIDE ints in {@link #code}: an op number and up to
+ * three operands with register numbers resolved and immediates sign extended,
+ * so running it never touches ProgramStatement again.
+ *
+ * Branch and jump targets are resolved to positions in {@link #code} here too.
+ * A repeat whose body is straight-line code (no other branch, jump or repeat)
+ * is marked so the engine can loop over the body without dispatching the repeat.
+ */
+public class CarProgram {
+
+    public static final int OP_STRIDE = 4;
+
+    //BASIC OPS
+    public static final int OP_ADD = 0;
+    public static final int OP_SUB = 1;
+    public static final int OP_MUL = 2;
+    public static final int OP_ADDI = 3;
+    public static final int OP_MOVE = 4;
+    public static final int OP_DIV = 5;
+    public static final int OP_AND = 6;
+    public static final int OP_OR = 7;
+    public static final int OP_XOR = 8;
+    public static final int OP_SLT = 9;
+    public static final int OP_LW = 10;
+    public static final int OP_SW = 11;
+    //CAR OPS
+    public static final int OP_THROTTLE = 12;
+    public static final int OP_SETSPD = 13;
+    public static final int OP_STEER = 14;
+    public static final int OP_SETSTEER = 15;
+    public static final int OP_EBRAKE = 16;
+    public static final int OP_LIGHTS = 17;
+    public static final int OP_AC = 18;
+    public static final int OP_SEAT = 19;
+    public static final int OP_POPHOOD = 20;
+    public static final int OP_FILLGAS = 21;
+    //IMMEDIATE CAR OPS
+    public static final int OP_THROTTLEI = 22;
+    public static final int OP_SETSPDI = 23;
+    public static final int OP_STEERI = 24;
+    public static final int OP_SETSTEERI = 25;
+    public static final int OP_LIGHTSI = 26;
+    public static final int OP_ACI = 27;
+    public static final int OP_SEATI = 28;
+    public static final int OP_FILLGASI = 29;
+    //PHYSICS OPS
+    public static final int OP_TICK = 30;
+    public static final int OP_DRIVE = 31;
+    //SENSOR OPS
+    public static final int OP_SENSE = 32;
+    //CONTROL OPS
+    public static final int OP_BEQ = 33;
+    public static final int OP_BNE = 34;
+    public static final int OP_J = 35;
+    public static final int OP_REPEAT = 36;
+    //WORLD OPS
+    public static final int OP_PROXIMITY = 37;
+    //VECTOR OPS
+    public static final int OP_VTHROTTLE = 38;
+    public static final int OP_VFILLGAS = 39;
+
+    // indexed by op number
+    private static final String[] MNEMONICS = {
+            "add", "sub", "mul", "addi", "move", "div", "and", "or", "xor", "slt", "lw", "sw",
+            "throttle", "setspd", "steer", "setsteer", "ebrake", "lights", "ac", "seat", "pophood", "fillgas",
+            "throttlei", "setspdi", "steeri", "setsteeri", "lightsi", "aci", "seati", "fillgasi",
+            "tick", "drive", "sense", "beq", "bne", "j", "repeat", "proximity",
+            "vthrottle", "vfillgas"};
+    private static final Map<String, Integer> OPS = new HashMap<String, Integer>();
+    static {
+        for (int op = 0; op < MNEMONICS.length; op++) {
+            OPS.put(MNEMONICS[op], op);
+        }
+    }
+
+    /** Guards the MARS globals (assembler, instruction set) the engine touches. */
+    private static final Object ASSEMBLER = new Object();
+
+    public static int opCount() {
+        return MNEMONICS.length;
+    }
+
+    final int[] code;
+    final int[] words;
+    final int[] addresses;
+    final int[] data;
+    private final ProgramStatement[] statements;
+
+    CarProgram(int[] code, int[] words, int[] addresses, int[] data, ProgramStatement[] statements) {
+        this.code = code;
+        this.words = words;
+        this.addresses = addresses;
+        this.data = data;
+        this.statements = statements;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    /** Initial contents of the data segment, starting at Memory.dataBaseAddress. */
+    public int[] getData() {
+        return data;
+    }
+
+    /** Assembles a file with MARS (Car Assembly must be the active language) and compiles the result. */
+    public static CarProgram assemble(String filename) throws ProcessingException {
+        return assemble(filename, Boolean.getBoolean("car.fuse"));
+    }
+
+    /**
+     * Same as assemble(filename), first running {@link CarPeephole} over the source
+     * when fuse is set. Unchanged sources come straight from the {@link CarProgramCache}
+     * without starting the assembler. MARS keeps the assembler in globals, so this
+     * holds ASSEMBLER, the lock every use of them in the engine takes.
+     */
+    public static CarProgram assemble(String filename, boolean fuse) throws ProcessingException {
+        synchronized (ASSEMBLER) {
+            return assembleLocked(filename, fuse);
+        }
+    }
+
+    private static CarProgram assembleLocked(String filename, boolean fuse) throws ProcessingException {
+        // first, so the language the cache key is built from is populated
+        Globals.initialize(false);
+        CarProgramCache cache = CarProgramCache.configured();
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.key(filename, fuse);
+            } catch (IOException e) {
+                // unreadable source; let the assembler report it
+            }
+            CarProgram cached = key == null ? null : cache.load(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String source = fuse ? CarPeephole.fuseToTempFile(filename) : filename;
+        MIPSprogram program = new MIPSprogram();
+        ArrayList<String> files = new ArrayList<String>();
+        files.add(source);
+        ArrayList programs = program.prepareFilesForAssembly(files, source, null);
+        program.assemble(programs, false, false);
+        CarProgram compiled = compile(program.getMachineList(), readDataSegment());
+        if (key != null) {
+            cache.store(key, compiled);
+        }
+        return compiled;
+    }
+
+    public static CarProgram compile(List statements, int[] data) throws ProcessingException {
+        int n = statements.size();
+        int[] code = new int[n * OP_STRIDE];
+        int[] words = new int[n];
+        int[] addresses = new int[n];
+        ProgramStatement[] kept = new ProgramStatement[n];
+        for (int i = 0; i < n; i++) {
+            ProgramStatement statement = (ProgramStatement) statements.get(i);
+            kept[i] = statement;
+            words[i] = statement.getBinaryStatement();
+            addresses[i] = statement.getAddress();
+            int[] operands = statement.getOperands();
+            int p = i * OP_STRIDE;
+            code[p] = opFor(statement.getInstruction().getName());
+            if (code[p] < 0) {
+                throw new ProcessingException(statement,
+                        "\"" + statement.getInstruction().getName() + "\" is not a Car Assembly instruction");
+            }
+            for (int k = 0; operands != null && k < operands.length && k < OP_STRIDE - 1; k++) {
+                code[p + 1 + k] = operands[k];
+            }
+            signExtend(code, p);
+        }
+        CarProgram compiled = new CarProgram(code, words, addresses, data, kept);
+        compiled.resolveTargets();
+        return compiled;
+    }
+
+    /**
+     * Compiles raw machine code, e.g. a text segment dumped from MARS, using the
+     * language's decode table. The first word is at textAddress.
+     */
+    public static CarProgram fromBinary(int[] machineCode, int textAddress, int[] data) throws ProcessingException {
+        CarDecoder decoder = CarAssembly.getDecoder();
+        int n = machineCode.length;
+        int[] code = new int[n * OP_STRIDE];
+        int[] addresses = new int[n];
+        int[] operands = new int[OP_STRIDE - 1];
+        for (int i = 0; i < n; i++) {
+            int p = i * OP_STRIDE;
+            addresses[i] = textAddress + 4 * i;
+            if (!decode(decoder, machineCode[i], code, p, operands)) {
+                throw new ProcessingException(new ProgramStatement(machineCode[i], addresses[i]),
+                        "word 0x" + Integer.toHexString(machineCode[i]) + " is not a Car Assembly instruction");
+            }
+        }
+        CarProgram compiled = new CarProgram(code, machineCode.clone(), addresses, data, null);
+        compiled.resolveTargets();
+        return compiled;
+    }
+
+    /** Loads a text segment saved with MARS's "Binary" dump format (4 bytes per word, low byte first). */
+    public static CarProgram fromDump(String filename) throws IOException, ProcessingException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        int[] words;
+        try {
+            words = new int[(int) (new File(filename).length() / 4)];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = Integer.reverseBytes(in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+        return fromBinary(words, Memory.textBaseAddress, new int[0]);
+    }
+
+    /** Decodes word into the op at p; false if it is not a Car Assembly instruction. */
+    private static boolean decode(CarDecoder decoder, int word, int[] code, int p, int[] operands) {
+        BasicInstruction instruction = decoder.decode(word);
+        int op = instruction == null ? -1 : opFor(instruction.getName());
+        if (op < 0) {
+            return false;
+        }
+        code[p] = op;
+        code[p + 1] = 0;
+        code[p + 2] = 0;
+        code[p + 3] = 0;
+        int count = decoder.decodeOperands(word, operands);
+        for (int k = 0; k < count; k++) {
+            code[p + 1 + k] = operands[k];
+        }
+        if (op == OP_LW || op == OP_SW) {
+            code[p + 2] = code[p + 2] << 16 >> 16;
+        }
+        signExtend(code, p);
+        return true;
+    }
+
+    /** Index of the instruction at address, or -1 if address is not in this program's text. */
+    int textIndex(int address) {
+        int n = addresses.length;
+        if (n == 0 || address - addresses[0] < 0) {
+            return -1;
+        }
+        int index = (address - addresses[0]) >> 2;
+        return index < n && addresses[index] == address ? index : -1;
+    }
+
+    /**
+     * A copy of this program with the instruction at index i replaced by word, as
+     * a store into the text segment leaves it. The word goes through the decoder
+     * like a dumped binary would; this program is shared, so it is left alone.
+     */
+    CarProgram rewrite(int i, int word) throws ProcessingException {
+        int[] patched = code.clone();
+        if (!decode(CarAssembly.getDecoder(), word, patched, i * OP_STRIDE, new int[OP_STRIDE - 1])) {
+            throw new IllegalArgumentException("word 0x" + Integer.toHexString(word)
+                    + " is not a Car Assembly instruction");
+        }
+        int[] patchedWords = words.clone();
+        patchedWords[i] = word;
+        ProgramStatement[] kept = null;
+        if (statements != null) {
+            kept = statements.clone();
+            kept[i] = null;
+        }
+        CarProgram rewritten = new CarProgram(patched, patchedWords, addresses, data, kept);
+        rewritten.resolveTargets();
+        return rewritten;
+    }
+
+    private static void signExtend(int[] code, int p) {
+        if (code[p] == OP_ADDI) {
+            code[p + 3] = code[p + 3] << 16 >> 16;
+        } else if (code[p] >= OP_THROTTLEI && code[p] <= OP_FILLGASI) {
+            code[p + 1] = code[p + 1] << 16 >> 16;
+        }
+    }
+
+    /**
+     * Replaces branch offsets and jump addresses with the code position they lead
+     * to; code.length means off the end, which ends the run. Targets come from the
+     * machine words, so assembled and decoded programs resolve the same way.
+     */
+    private void resolveTargets() throws ProcessingException {
+        int n = words.length;
+        for (int i = 0; i < n; i++) {
+            int p = i * OP_STRIDE;
+            int op = code[p];
+            int target;
+            if (op == OP_BEQ || op == OP_BNE || op == OP_REPEAT) {
+                target = addresses[i] + 4 + ((words[i] << 16 >> 16) << 2);
+            } else if (op == OP_J) {
+                target = ((addresses[i] + 4) & 0xF0000000) | ((words[i] & 0x03FFFFFF) << 2);
+            } else {
+                continue;
+            }
+            int index = (target - addresses[0]) >> 2;
+            if (index < 0 || index > n) {
+                throw new ProcessingException(statement(i),
+                        "target 0x" + Integer.toHexString(target) + " is outside the program");
+            }
+            if (op == OP_J) {
+                code[p + 1] = index * OP_STRIDE;
+            } else if (op == OP_REPEAT) {
+                code[p + 2] = index * OP_STRIDE;
+                code[p + 3] = code[p + 1] != 0 && index < i && straightLine(index, i) ? 1 : 0;
+            } else {
+                code[p + 3] = index * OP_STRIDE;
+            }
+        }
+    }
+
+    private boolean straightLine(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int op = code[i * OP_STRIDE];
+            if (op == OP_BEQ || op == OP_BNE || op == OP_J || op == OP_REPEAT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Op number for an instruction mnemonic, or -1 if the engine does not know it. */
+    static int opFor(String mnemonic) {
+        Integer op = OPS.get(mnemonic.toLowerCase());
+        return op == null ? -1 : op;
+    }
+
+    /** Mnemonic of an op number. */
+    public static String mnemonic(int op) {
+        return MNEMONICS[op];
+    }
+
+    /** The statement at index i, rebuilt from its binary form if the program was not assembled in this JVM. */
+    ProgramStatement statement(int i) {
+        if (statements != null && statements[i] != null) {
+            return statements[i];
+        }
+        synchronized (ASSEMBLER) {
+            Globals.initialize(false);
+            return new ProgramStatement(words[i], addresses[i]);
+        }
+    }
+
+    private static int[] readDataSegment() {
+        int length = (Memory.heapBaseAddress - Memory.dataBaseAddress) >> 2;
+        int[] data = new int[length];
+        int used = 0;
+        try {
+            for (int i = 0; i < length; i++) {
+                data[i] = Memory.getInstance().getWordNoNotify(Memory.dataBaseAddress + 4 * i);
+                if (data[i] != 0) {
+                    used = i + 1;
+                }
+            }
+        } catch (AddressErrorException e) {
+            // keep what was read
+        }
+        int[] trimmed = new int[used];
+        System.arraycopy(data, 0, trimmed, 0, used);
+        return trimmed;
+    }
+}
@@ -0,0 +1,201 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of compiled {@link CarProgram}s, so re-running an unchanged
+ * script skips the MARS assembler and costs one file read. An entry holds the
+ * assembled machine code and data segment, not the engine's ops: a hit decodes
+ * the words again with {@link CarProgram#fromBinary}, so a change to how the
+ * engine compiles never reads a stale layout. Entries are keyed by a SHA-256 of
+ * the source together with the language definition and the memory layout, so
+ * editing the script or the language simply misses. The least recently used
+ * entries (by file modification time, which a hit refreshes) are deleted once
+ * there are more than maxEntries.
+ *
+ * Sources using .include are not cached, since their key would not cover the
+ * included files. Programs loaded from the cache have no source statements, so
+ * runtime errors point at addresses rather than lines.
+ *
+ * Picked with -Dcar.cache=dir (default ~/.carasm-cache, "off" to disable) and
+ * -Dcar.cache.size=entries (default 256).
+ */
+public class CarProgramCache {
+
+    private static final int MAGIC = 0x43505247; // "CPRG"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".carprog";
+
+    private static CarProgramCache configured;
+    private static boolean configuredOpened;
+
+    private final File directory;
+    private final int maxEntries;
+
+    public CarProgramCache(File directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /** The cache selected by the car.cache system properties, or null when it is turned off. */
+    public static synchronized CarProgramCache configured() {
+        if (!configuredOpened) {
+            configuredOpened = true;
+            String dir = System.getProperty("car.cache",
+                    new File(System.getProperty("user.home"), ".carasm-cache").getPath());
+            if (!dir.equalsIgnoreCase("off")) {
+                configured = new CarProgramCache(new File(dir), Integer.getInteger("car.cache.size", 256));
+            }
+        }
+        return configured;
+    }
+
+    /** Cache key for a source file, or null if it cannot be cached. */
+    public String key(String filename, boolean fuse) throws IOException {
+        byte[] source = Files.readAllBytes(new File(filename).toPath());
+        if (new String(source, StandardCharsets.ISO_8859_1).contains(".include")) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        header.append(VERSION).append('\n').append(CarAssembly.getLanguage());
+        header.append('\n').append(fuse).append(' ').append(Memory.textBaseAddress)
+                .append(' ').append(Memory.dataBaseAddress).append(' ').append(Memory.heapBaseAddress).append('\n');
+        digest.update(header.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(source);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /** The program stored under key, or null on a miss or an unreadable entry. */
+    public CarProgram load(String key) {
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            IntBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asIntBuffer();
+            if (in.get() != MAGIC || in.get() != VERSION) {
+                return null;
+            }
+            int textAddress = in.get();
+            int[] words = read(in);
+            int[] data = read(in);
+            CarProgram program = CarProgram.fromBinary(words, textAddress, data);
+            file.setLastModified(System.currentTimeMillis());
+            return program;
+        } catch (IOException e) {
+            return null;
+        } catch (ProcessingException e) {
+            // words the current decode table does not know
+            return null;
+        } catch (RuntimeException e) {
+            // truncated or corrupt entry; it gets overwritten on the next store
+            return null;
+        }
+    }
+
+    private static int[] read(IntBuffer in) {
+        int[] values = new int[in.get()];
+        in.get(values);
+        return values;
+    }
+
+    /**
+     * Saves program under key. Failures only cost the next run a re-assembly, so
+     * they are reported and ignored. Programs whose text is not one contiguous run
+     * of words are not stored.
+     */
+    public void store(String key, CarProgram program) {
+        int[] addresses = program.addresses;
+        for (int i = 1; i < addresses.length; i++) {
+            if (addresses[i] != addresses[0] + 4 * i) {
+                return;
+            }
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            ByteBuffer out = ByteBuffer.allocate(4 * (5 + program.words.length + program.data.length));
+            out.putInt(MAGIC).putInt(VERSION);
+            out.putInt(addresses.length == 0 ? Memory.textBaseAddress : addresses[0]);
+            write(out, program.words);
+            write(out, program.data);
+            // write then rename, so a run reading the cache at the same time never sees half an entry
+            File temp = File.createTempFile("carprog", ".tmp", directory);
+            try {
+                Files.write(temp.toPath(), out.array());
+                Files.move(temp.toPath(), new File(directory, key + SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+            evict();
+        } catch (IOException e) {
+            System.err.println("car program not cached: " + e);
+        }
+    }
+
+    private static void write(ByteBuffer out, int[] values) {
+        out.putInt(values.length);
+        out.asIntBuffer().put(values);
+        out.position(out.position() + 4 * values.length);
+    }
+
+    private void evict() {
+        File[] entries = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (entries == null || entries.length <= maxEntries) {
+            return;
+        }
+        final long[] modified = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            modified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (int i = 0; i < entries.length - maxEntries; i++) {
+            entries[order[i]].delete();
+        }
+    }
+
+    /** Removes every entry. */
+    public void clear() {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.getName().endsWith(SUFFIX)) {
+                entry.delete();
+            }
+        }
+    }
+}
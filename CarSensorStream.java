@@ -0,0 +1,250 @@
+package mars.mips.instructions.customlangs;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pre-recorded sensor readings for the sense instruction. The file is a 16 byte
+ * header (magic "CSNS", version, channel count, unused) followed by one frame per
+ * tick, each frame holding one big-endian int per channel. Frame n is what the
+ * sensors read after n ticks.
+ *
+ * The file is read through memory-mapped windows of WINDOW_SIZE bytes, so samples
+ * are read straight out of the page cache and a recording of any size never
+ * lands on the heap. Each window is mapped once, when a reader first gets to it,
+ * and shared by every reader. A reader is a {@link Cursor}: every car gets its
+ * own, so cars at different ticks of the same recording never move each other's
+ * window. Once a cursor gets past the middle of a window, the next one is mapped
+ * and paged in on the one read-ahead thread all recordings share.
+ *
+ * Usage: java mars.mips.instructions.customlangs.CarSensorStream readings.txt readings.sensors
+ * (one frame per line, channels separated by spaces or commas)
+ */
+public class CarSensorStream implements Closeable {
+
+    static final int MAGIC = 0x43534e53; // "CSNS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final long WINDOW_SIZE = 64L << 20;
+
+    private static final class Window {
+        final long start;
+        final long end;
+        final MappedByteBuffer buffer;
+
+        Window(long start, long end, MappedByteBuffer buffer) {
+            this.start = start;
+            this.end = end;
+            this.buffer = buffer;
+        }
+    }
+
+    /** One reader's place in the recording. Not thread-safe; give each thread or car its own. */
+    public final class Cursor {
+        private Window window = windows.get(0);
+        // the window whose successor this cursor already asked for
+        private long aheadOf = -1;
+
+        public CarSensorStream getStream() {
+            return CarSensorStream.this;
+        }
+
+        public boolean hasFrame(long frame) {
+            return CarSensorStream.this.hasFrame(frame);
+        }
+
+        /** Channel ch of frame; the frame must exist. */
+        public int sample(long frame, int ch) {
+            if (ch < 0 || ch >= channels) {
+                throw new IllegalArgumentException("no sensor channel " + ch + " (recording has " + channels + ")");
+            }
+            long position = HEADER_SIZE + (frame * channels + ch) * 4;
+            Window w = window;
+            if (position < w.start || position >= w.end) {
+                w = window((int) (position / WINDOW_SIZE));
+                window = w;
+            }
+            int offset = (int) (position - w.start);
+            if (offset > WINDOW_SIZE / 2 && w.end < length && aheadOf != w.start) {
+                aheadOf = w.start;
+                readAhead((int) (w.end / WINDOW_SIZE));
+            }
+            return w.buffer.getInt(offset);
+        }
+    }
+
+    private static final class ReadAhead {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "car-sensor-readahead");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static CarSensorStream configured;
+    private static boolean configuredOpened;
+
+    private final FileChannel channel;
+    private final long length;
+    private final int channels;
+    private final long frames;
+    private final AtomicReferenceArray<Window> windows;
+    private final AtomicIntegerArray fetched;
+    private final Cursor shared;
+
+    public CarSensorStream(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        length = channel.size();
+        if (length < HEADER_SIZE) {
+            channel.close();
+            throw new IOException(filename + " is not a car sensor recording");
+        }
+        int count = (int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        windows = new AtomicReferenceArray<Window>(count);
+        fetched = new AtomicIntegerArray(count);
+        MappedByteBuffer header = window(0).buffer;
+        channels = header.getInt(8);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || channels <= 0) {
+            channel.close();
+            throw new IOException(filename + " is not a car sensor recording");
+        }
+        frames = (length - HEADER_SIZE) / (4L * channels);
+        shared = new Cursor();
+    }
+
+    /** The recording named by -Dcar.sensors, opened on first use; null if none is set or it cannot be read. */
+    public static synchronized CarSensorStream configured() {
+        if (!configuredOpened) {
+            configuredOpened = true;
+            String filename = System.getProperty("car.sensors");
+            if (filename != null) {
+                try {
+                    configured = new CarSensorStream(filename);
+                } catch (IOException e) {
+                    System.err.println("car sensors not available: " + e);
+                }
+            }
+        }
+        return configured;
+    }
+
+    /** A new reader starting at the first window. */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public boolean hasFrame(long frame) {
+        return frame >= 0 && frame < frames;
+    }
+
+    /** Channel ch of frame through a cursor shared by every caller of this method; cars use their own. */
+    public synchronized int sample(long frame, int ch) {
+        return shared.sample(frame, ch);
+    }
+
+    private Window window(int index) {
+        Window w = windows.get(index);
+        if (w == null) {
+            w = map((long) index * WINDOW_SIZE);
+            if (!windows.compareAndSet(index, null, w)) {
+                w = windows.get(index);
+            }
+        }
+        return w;
+    }
+
+    private void readAhead(final int index) {
+        if (!fetched.compareAndSet(index, 0, 1)) {
+            return;
+        }
+        ReadAhead.EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    window(index).buffer.load();
+                } catch (UncheckedIOException e) {
+                    // the reader maps it itself when it gets there
+                    fetched.set(index, 0);
+                }
+            }
+        });
+    }
+
+    private Window map(long start) {
+        long end = Math.min(start + WINDOW_SIZE, length);
+        try {
+            return new Window(start, end, channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** Converts a text recording, one frame of whitespace or comma separated ints per line, to the binary format. */
+    public static void convert(String textFile, String sensorFile) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(textFile));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sensorFile)));
+        try {
+            int width = -1;
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                StringTokenizer st = new StringTokenizer(line, " ,\t");
+                if (!st.hasMoreTokens() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                if (width < 0) {
+                    width = st.countTokens();
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(width);
+                    out.writeInt(0);
+                }
+                if (st.countTokens() != width) {
+                    throw new IOException(textFile + ":" + lineNumber + ": expected " + width + " channels");
+                }
+                while (st.hasMoreTokens()) {
+                    out.writeInt(Integer.decode(st.nextToken()));
+                }
+            }
+            if (width < 0) {
+                throw new IOException(textFile + " has no frames");
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: CarSensorStream readings.txt readings.sensors");
+            return;
+        }
+        convert(args[0], args[1]);
+        CarSensorStream stream = new CarSensorStream(args[1]);
+        System.out.println(stream.getFrames() + " frames of " + stream.getChannels() + " channels in " + args[1]);
+        stream.close();
+    }
+}
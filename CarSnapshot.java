@@ -0,0 +1,42 @@
+package mars.mips.instructions.customlangs;
+
+/**
+ * A frozen {@link CarMachine}: registers, car, data memory and any instructions
+ * the program rewrote at one point of a run. Memory pages are shared
+ * copy-on-write with the machine it came from and with every machine forked
+ * from it, so a warm-up can be run once and forked into many variants cheaply.
+ */
+public final class CarSnapshot {
+
+    private static final CarTelemetry SILENT = new CarTelemetry(CarTelemetry.SILENT);
+
+    final int[] regs;
+    final CarState car;
+    final CarMemory.Snapshot memory;
+    final long executed;
+    final CarProgram rewritten;
+    final CarProgram rewrittenFrom;
+
+    CarSnapshot(int[] regs, CarState car, CarMemory.Snapshot memory, long executed,
+                CarProgram rewritten, CarProgram rewrittenFrom) {
+        this.regs = regs.clone();
+        this.car = new CarState(SILENT);
+        this.car.copyFrom(car);
+        this.memory = memory;
+        this.executed = executed;
+        this.rewritten = rewritten;
+        this.rewrittenFrom = rewrittenFrom;
+    }
+
+    public int getRegister(int r) {
+        return regs[r];
+    }
+
+    public int getField(int field) {
+        return car.get(field);
+    }
+
+    public long getExecuted() {
+        return executed;
+    }
+}
@@ -0,0 +1,449 @@
+package mars.mips.instructions.customlangs;
+
+/**
+ * The state of one car, packed into a small int array. The car instructions
+ * change it through the methods below, which keep the clamping rules of the
+ * language in one place. Field writes only mark the field dirty; listeners
+ * hear about them once per instruction when {@link #commit()} runs.
+ */
+public class CarState {
+
+    //FIELDS
+    public static final int SPEED = 0;
+    public static final int STEER = 1;
+    public static final int LIGHTS = 2;
+    public static final int AC = 3;
+    public static final int SEAT = 4;
+    public static final int STATUS = 5;
+    public static final int GAS = 6;
+    public static final int HEADING = 7;
+    public static final int POS_X = 8;
+    public static final int POS_Y = 9;
+    public static final int TICKS = 10;
+    public static final int FIELDS = 11;
+    /** Words per car record in data memory for the vector instructions; field i is word i. */
+    public static final int RECORD_WORDS = 16;
+
+    //STATUS FLAGS
+    public static final int STATUS_EBRAKE = 0x1;
+    public static final int STATUS_HOOD = 0x2;
+    public static final int STATUS_OUT_OF_GAS = 0x4;
+    public static final int STATUS_SENSOR_END = 0x8;
+    public static final int STATUS_COLLISION = 0x10;
+
+    //PHYSICS
+    /** Gas burned per tick for each unit of speed, in millionths of a percent. */
+    public static final long BURN_PER_SPEED = 100;
+    public static final long GAS_UNIT = 1000000;
+    /** The heading turns by steer / TURN_DIVISOR degrees every tick the car moves. */
+    public static final int TURN_DIVISOR = 10;
+    private static final long[] COS = new long[360];
+    private static final long[] SIN = new long[360];
+    static {
+        // 16.16 fixed point, StrictMath so every JVM builds the same table
+        for (int d = 0; d < 360; d++) {
+            COS[d] = Math.round(StrictMath.cos(StrictMath.toRadians(d)) * 65536);
+            SIN[d] = Math.round(StrictMath.sin(StrictMath.toRadians(d)) * 65536);
+        }
+    }
+
+    public interface Listener {
+        void carStateChanged(CarState state, int dirtyMask);
+    }
+
+    protected final int[] fields = new int[FIELDS];
+    protected final CarTelemetry telemetry;
+    private int dirty;
+    private long step;
+    // below-one-unit parts of position (1/65536ths) and gas (millionths of a percent)
+    private int fracX;
+    private int fracY;
+    private long gasFraction;
+    private CarSensorStream.Cursor sensors = cursor(CarSensorStream.configured());
+    private CarWorld world;
+    private int worldId = -1;
+    private Listener[] listeners = new Listener[0];
+
+    public CarState(CarTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    public int get(int field) {
+        return fields[field];
+    }
+
+    /** Raw write with no clamping; used by stores into the device and by restores. */
+    public void set(int field, int value) {
+        fields[field] = value;
+        dirty |= 1 << field;
+    }
+
+    public void reset() {
+        for (int i = 0; i < FIELDS; i++) {
+            set(i, 0);
+        }
+        fracX = 0;
+        fracY = 0;
+        gasFraction = 0;
+        step = 0;
+        commit();
+    }
+
+    /**
+     * Makes this car an exact copy of other, sub-unit fractions and step included.
+     * Listeners hear about a step going backwards even when no field differs, so a
+     * trace being recorded knows the run was rewound.
+     */
+    public void copyFrom(CarState other) {
+        for (int i = 0; i < FIELDS; i++) {
+            if (fields[i] != other.fields[i]) {
+                set(i, other.fields[i]);
+            }
+        }
+        fracX = other.fracX;
+        fracY = other.fracY;
+        gasFraction = other.gasFraction;
+        boolean rewound = other.step < step;
+        step = other.step;
+        if (dirty == 0 && rewound) {
+            changed(0);
+        } else {
+            commit();
+        }
+    }
+
+    /** Instructions completed before the one now running; whoever executes the program keeps it current. */
+    public long getStep() {
+        return step;
+    }
+
+    public void setStep(long step) {
+        this.step = step;
+    }
+
+    public CarSensorStream getSensors() {
+        return sensors == null ? null : sensors.getStream();
+    }
+
+    /**
+     * The recording sense reads from, through a cursor of this car's own; null
+     * means every sense reads past the end.
+     */
+    public void setSensors(CarSensorStream sensors) {
+        this.sensors = cursor(sensors);
+    }
+
+    private static CarSensorStream.Cursor cursor(CarSensorStream stream) {
+        return stream == null ? null : stream.cursor();
+    }
+
+    void joinWorld(CarWorld world, int id) {
+        this.world = world;
+        this.worldId = id;
+    }
+
+    public CarWorld getWorld() {
+        return world;
+    }
+
+    /** This car's id in its world, or -1 when it drives alone. */
+    public int getWorldId() {
+        return worldId;
+    }
+
+    public CarTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        Listener[] grown = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, grown, 0, listeners.length);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                Listener[] shrunk = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, shrunk, 0, i);
+                System.arraycopy(listeners, i + 1, shrunk, i, shrunk.length - i);
+                listeners = shrunk;
+                return;
+            }
+        }
+    }
+
+    /** Publishes every field written since the last commit in one notification. */
+    public void commit() {
+        int mask = dirty;
+        if (mask == 0) {
+            return;
+        }
+        dirty = 0;
+        changed(mask);
+    }
+
+    protected void changed(int dirtyMask) {
+        Listener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].carStateChanged(this, dirtyMask);
+        }
+    }
+
+    /** Speed after throttling by delta, the rule vthrottle applies to every record. */
+    public static int throttled(int speed, int delta) {
+        long newSpeed = (long) speed + (long) delta;
+        return newSpeed < 0 ? 0 : (int) newSpeed;
+    }
+
+    /** Gas after filling by amt, the rule vfillgas applies to every record. */
+    public static int filled(int gas, int amt) {
+        long newLevel = (long) amt + (long) gas;
+        return newLevel < 0 ? 0 : newLevel > 100 ? 100 : (int) newLevel;
+    }
+
+    //CAR OPERATIONS
+    public void throttle(int delta) {
+        long newSpeed = (long) fields[SPEED] + (long) delta;
+        if (newSpeed < 0) {
+            newSpeed = 0;
+            CarProfiler.clamp(CarProfiler.THROTTLE_FLOOR);
+        }
+        set(SPEED, (int) newSpeed);
+        commit();
+        telemetry.emit(CarTelemetry.SPEED_CHANGED, newSpeed);
+    }
+
+    public void setSpeed(int v) {
+        if (v < 0) {
+            v = 0;
+            CarProfiler.clamp(CarProfiler.SETSPD_FLOOR);
+        }
+        set(SPEED, v);
+        commit();
+        telemetry.emit(CarTelemetry.SPEED_SET, v);
+    }
+
+    public void steer(int delta) {
+        int newAngle = fields[STEER] + delta;
+        if (newAngle < -90) {
+            newAngle = -90;
+            CarProfiler.clamp(CarProfiler.STEER_SATURATED);
+        } else if (newAngle > 90) {
+            newAngle = 90;
+            CarProfiler.clamp(CarProfiler.STEER_SATURATED);
+        }
+        set(STEER, newAngle);
+        commit();
+        telemetry.emit(CarTelemetry.STEER, newAngle);
+    }
+
+    public void setSteer(int angle) {
+        set(STEER, angle);
+        commit();
+        telemetry.emit(CarTelemetry.STEER, angle);
+    }
+
+    public void ebrake() {
+        set(SPEED, 0);
+        set(STATUS, fields[STATUS] | STATUS_EBRAKE);
+        commit();
+        telemetry.emit(CarTelemetry.STOPPED, 0);
+    }
+
+    public void lights(int mask) {
+        set(LIGHTS, mask);
+        commit();
+        telemetry.emit(CarTelemetry.LIGHTS, mask);
+    }
+
+    public void ac(int acVal) {
+        set(AC, acVal);
+        commit();
+        telemetry.emit(CarTelemetry.AC, acVal);
+    }
+
+    public void seat(int seatPos) {
+        set(SEAT, seatPos);
+        commit();
+        telemetry.emit(CarTelemetry.SEAT, seatPos);
+    }
+
+    public void popHood() {
+        set(STATUS, fields[STATUS] | STATUS_HOOD);
+        commit();
+        telemetry.emit(CarTelemetry.HOOD, 0);
+    }
+
+    public void fillGas(int amt) {
+        long newLevel = (long) amt + (long) fields[GAS];
+        if (newLevel < 0) {
+            newLevel = 0;
+            gasFraction = 0;
+            CarProfiler.clamp(CarProfiler.FILLGAS_EMPTY);
+        } else if (newLevel > 100) {
+            newLevel = 100;
+            CarProfiler.clamp(CarProfiler.FILLGAS_CAPPED);
+        }
+        if (newLevel == 100) {
+            gasFraction = 0;
+        }
+        set(GAS, (int) newLevel);
+        commit();
+        telemetry.emit(CarTelemetry.GAS, newLevel);
+    }
+
+    /**
+     * Reads a sensor channel at the current tick. Past the end of the recording
+     * (or without one) it reads 0 and raises the sensor end flag.
+     */
+    public int sense(int channel) {
+        CarSensorStream.Cursor cursor = sensors;
+        long frame = fields[TICKS];
+        if (cursor == null || !cursor.hasFrame(frame)) {
+            if ((fields[STATUS] & STATUS_SENSOR_END) == 0) {
+                set(STATUS, fields[STATUS] | STATUS_SENSOR_END);
+                commit();
+            }
+            return 0;
+        }
+        return cursor.sample(frame, channel);
+    }
+
+    /** Distance to the nearest other car on the road; CarWorld.NONE when alone or nobody is near. */
+    public int proximity() {
+        CarWorld current = world;
+        return current == null ? CarWorld.NONE : current.proximity(this);
+    }
+
+    void collide() {
+        set(STATUS, fields[STATUS] | STATUS_COLLISION);
+        commit();
+        telemetry.emit(CarTelemetry.COLLISION, 0);
+    }
+
+    /**
+     * Advances one time step: the car moves SPEED units along HEADING, burns gas
+     * in proportion to its speed and then turns by STEER / TURN_DIVISOR degrees.
+     * A car without enough gas for the step stays put, stops, and raises the
+     * out of gas flag.
+     */
+    public void tick() {
+        advance();
+        telemetry.emit(CarTelemetry.DRIVE, 1);
+    }
+
+    private void advance() {
+        int speed = fields[SPEED];
+        if (speed > 0) {
+            long burn = speed * BURN_PER_SPEED;
+            long gas = fields[GAS] * GAS_UNIT + gasFraction;
+            if (gas < burn) {
+                runOutOfGas();
+            } else {
+                int heading = normalize(fields[HEADING]);
+                move(speed * COS[heading], speed * SIN[heading]);
+                setGas(gas - burn);
+                set(HEADING, normalize(heading + fields[STEER] / TURN_DIVISOR));
+            }
+        }
+        set(TICKS, fields[TICKS] + 1);
+        commit();
+    }
+
+    /**
+     * One of the n ticks of a drive on a shared road, where the other cars have to
+     * see every step (CarMachine drives there one tick per tick of the road).
+     * The last one reports the whole drive.
+     */
+    void driveTick(int n, boolean last) {
+        advance();
+        if (last) {
+            telemetry.emit(CarTelemetry.DRIVE, n);
+        }
+    }
+
+    /**
+     * Same result as calling tick() n times, in time independent of n. Speed and
+     * turn rate are constant while driving, so the headings repeat with a period
+     * of at most 360 ticks; the displacement is whole periods times the sum over
+     * one period plus the leftover ticks, all in exact integer arithmetic.
+     */
+    public void drive(int n) {
+        if (n <= 0) {
+            return;
+        }
+        int speed = fields[SPEED];
+        if (speed > 0) {
+            long burn = speed * BURN_PER_SPEED;
+            long gas = fields[GAS] * GAS_UNIT + gasFraction;
+            long moving = Math.min(n, gas / burn);
+            if (moving > 0) {
+                int heading = normalize(fields[HEADING]);
+                int rate = normalize(fields[STEER] / TURN_DIVISOR);
+                int period = 360 / gcd(rate, 360);
+                long sumCos = 0;
+                long sumSin = 0;
+                long partCos = 0;
+                long partSin = 0;
+                int leftover = (int) (moving % period);
+                int h = heading;
+                for (int i = 0; i < period; i++) {
+                    if (i == leftover) {
+                        partCos = sumCos;
+                        partSin = sumSin;
+                    }
+                    sumCos += COS[h];
+                    sumSin += SIN[h];
+                    h = normalize(h + rate);
+                }
+                long whole = moving / period;
+                move(speed * (whole * sumCos + partCos), speed * (whole * sumSin + partSin));
+                setGas(gas - moving * burn);
+                set(HEADING, (int) ((heading + (moving % 360) * rate) % 360));
+            }
+            if (moving < n) {
+                runOutOfGas();
+            }
+        }
+        set(TICKS, fields[TICKS] + n);
+        commit();
+        telemetry.emit(CarTelemetry.DRIVE, n);
+    }
+
+    private void move(long dx, long dy) {
+        long x = ((long) fields[POS_X] << 16) + fracX + dx;
+        long y = ((long) fields[POS_Y] << 16) + fracY + dy;
+        set(POS_X, (int) (x >> 16));
+        set(POS_Y, (int) (y >> 16));
+        fracX = (int) (x & 0xffff);
+        fracY = (int) (y & 0xffff);
+    }
+
+    private void setGas(long gas) {
+        set(GAS, (int) (gas / GAS_UNIT));
+        gasFraction = gas % GAS_UNIT;
+    }
+
+    private void runOutOfGas() {
+        set(SPEED, 0);
+        set(STATUS, fields[STATUS] | STATUS_OUT_OF_GAS);
+        CarProfiler.clamp(CarProfiler.OUT_OF_GAS);
+        telemetry.emit(CarTelemetry.OUT_OF_GAS, 0);
+    }
+
+    private static int normalize(int degrees) {
+        int d = degrees % 360;
+        return d < 0 ? d + 360 : d;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,217 @@
+package mars.mips.instructions.customlangs;
+import mars.util.SystemIO;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sink for the messages the car instructions report. Instructions hand over a
+ * binary event (kind + value); the text is only built by whoever prints it.
+ *
+ * VERBOSE prints every event right away (the original behavior), BATCHED puts
+ * events in a ring buffer that a background thread prints in bulk, and SILENT
+ * only keeps per-kind counters. The mode is picked with -Dcar.telemetry=verbose|batched|silent.
+ *
+ * Fleet workers share one sink, so emit may be called from many threads at once.
+ * A producer claims a ring slot with one atomic increment and publishes it by
+ * stamping the slot's sequence number; the flusher only prints up to the first
+ * slot that has not been published yet.
+ */
+public class CarTelemetry {
+
+    public static final int VERBOSE = 0;
+    public static final int BATCHED = 1;
+    public static final int SILENT = 2;
+
+    //EVENT KINDS
+    public static final int SPEED_CHANGED = 0;
+    public static final int SPEED_SET = 1;
+    public static final int STEER = 2;
+    public static final int STOPPED = 3;
+    public static final int LIGHTS = 4;
+    public static final int AC = 5;
+    public static final int SEAT = 6;
+    public static final int HOOD = 7;
+    public static final int GAS = 8;
+    public static final int DRIVE = 9;
+    public static final int OUT_OF_GAS = 10;
+    public static final int COLLISION = 11;
+    public static final int KINDS = 12;
+
+    private static final int CAPACITY = 1 << 14;
+    private static final long FLUSH_INTERVAL_NANOS = 50000000L;
+
+    private static CarTelemetry configured;
+
+    private final int mode;
+    private final LongAdder[] counts = new LongAdder[KINDS];
+    private final long[] ring;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public CarTelemetry(int mode) {
+        this.mode = mode;
+        for (int i = 0; i < KINDS; i++) {
+            counts[i] = new LongAdder();
+        }
+        if (mode == BATCHED) {
+            ring = new long[CAPACITY];
+            published = new AtomicLongArray(CAPACITY);
+            startFlusher();
+        } else {
+            ring = null;
+            published = null;
+        }
+    }
+
+    /** The sink selected by the car.telemetry system property, shared by the whole simulator. */
+    public static synchronized CarTelemetry configured() {
+        if (configured == null) {
+            configured = new CarTelemetry(parseMode(System.getProperty("car.telemetry", "verbose")));
+        }
+        return configured;
+    }
+
+    public static int parseMode(String name) {
+        if (name.equalsIgnoreCase("batched")) {
+            return BATCHED;
+        }
+        if (name.equalsIgnoreCase("silent")) {
+            return SILENT;
+        }
+        return VERBOSE;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /** Records one event. Nothing is allocated here unless the sink is VERBOSE. */
+    public void emit(int kind, long value) {
+        counts[kind].increment();
+        if (mode == VERBOSE) {
+            String text = format(kind, value);
+            if (text != null) {
+                SystemIO.printString(text);
+            }
+        } else if (mode == BATCHED) {
+            long h = head.getAndIncrement();
+            while (h - tail.get() >= CAPACITY) {
+                // full: print what is there; slots claimed before ours are published by their own threads
+                flush();
+                if (h - tail.get() >= CAPACITY) {
+                    Thread.yield();
+                }
+            }
+            int slot = (int) (h & (CAPACITY - 1));
+            ring[slot] = ((long) kind << 48) | (value & 0xFFFFFFFFFFFFL);
+            // the stamp is h + 1 so a slot that was never written (0) is never taken as published
+            published.lazySet(slot, h + 1);
+        }
+    }
+
+    public long count(int kind) {
+        return counts[kind].sum();
+    }
+
+    public long total() {
+        long sum = 0;
+        for (LongAdder c : counts) {
+            sum += c.sum();
+        }
+        return sum;
+    }
+
+    /** Prints everything buffered so far in one write. */
+    public synchronized void flush() {
+        if (ring == null) {
+            return;
+        }
+        long t = tail.get();
+        long h = head.get();
+        if (t == h) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (; t < h; t++) {
+            int slot = (int) (t & (CAPACITY - 1));
+            if (published.get(slot) != t + 1) {
+                // claimed but still being written; the next flush picks it up
+                break;
+            }
+            long event = ring[slot];
+            String text = format((int) (event >>> 48), event << 16 >> 16);
+            if (text != null) {
+                out.append(text);
+            }
+        }
+        tail.set(t);
+        if (out.length() > 0) {
+            SystemIO.printString(out.toString());
+        }
+    }
+
+    public static String format(int kind, long value) {
+        switch (kind) {
+            case SPEED_CHANGED:
+                return "Your speed is now: " + value + " \n";
+            case SPEED_SET:
+                return "Your speed is: " + value + " \n";
+            case STEER:
+                return "You are turned at a: " + value + " degree angle \n";
+            case STOPPED:
+                return "Your car is now stopped \n";
+            case LIGHTS:
+                if (value == 0x01) {
+                    return "the headlights are now on \n";
+                } else if (value == 0x02) {
+                    return "the high beams are now on \n";
+                } else if (value == 0x04) {
+                    return "the left turn signal is now on \n";
+                } else if (value == 0x08) {
+                    return "the right turn signal is now on \n";
+                } else if (value == 0x10) {
+                    return "the hazard lights are now on \n";
+                } else if (value == 0) {
+                    return "the lights are now off \n";
+                }
+                return null;
+            case AC:
+                return "the car is now: " + value + " fahrenheit \n";
+            case SEAT:
+                return "the seat is now set at: " + value + " \n";
+            case HOOD:
+                return "the hood is now popped \n";
+            case GAS:
+                return "the gas is now: " + value + "% full \n";
+            case DRIVE:
+                return "you drove for: " + value + " ticks \n";
+            case OUT_OF_GAS:
+                return "Your car is out of gas \n";
+            case COLLISION:
+                return "Your car hit another car \n";
+            default:
+                return null;
+        }
+    }
+
+    private void startFlusher() {
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+                    flush();
+                }
+            }
+        }, "car-telemetry-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }));
+    }
+}
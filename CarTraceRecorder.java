@@ -0,0 +1,179 @@
+package mars.mips.instructions.customlangs;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every change to a car's fields into a compact binary trace that
+ * {@link CarTraceReplay} can seek through. The trace is written through
+ * memory-mapped segments, so recording costs a few bytes per change and no
+ * heap beyond one mapping.
+ *
+ * Each commit becomes one record: the step delta, a bitmask of the changed
+ * fields and the zigzag varint delta of each. Every KEYFRAME_INTERVAL records a
+ * keyframe with the absolute step and all fields is written instead, and its
+ * (step, offset) pair is appended to the ".idx" file next to the trace.
+ *
+ * When the step goes backwards (the machine was restored to a snapshot) the
+ * index is cut back to the keyframes at or before the restored step and a new
+ * keyframe starts the branch being recorded from there. The index stays sorted,
+ * and the records of the abandoned branch are never reached again: replay only
+ * decodes forward from a keyframe up to the step asked for, which is at most the
+ * restored step for any keyframe left from before the restore.
+ */
+public class CarTraceRecorder implements CarState.Listener, Closeable {
+
+    static final int MAGIC = 0x43545243; // "CTRC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final long SEGMENT_SIZE = 64L << 20;
+    static final int KEYFRAME_INTERVAL = 1024;
+    static final byte TAG_END_OF_SEGMENT = 0;
+    static final byte TAG_DELTA = 1;
+    static final byte TAG_KEYFRAME = 2;
+    static final int INDEX_ENTRY_SIZE = 16;
+    // worst case: tag + 10 byte step + 5 byte mask + 5 bytes per field
+    private static final int MAX_RECORD = 16 + 5 * CarState.FIELDS;
+
+    private final CarState state;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 4096);
+    private long indexed;
+    private final int[] last = new int[CarState.FIELDS];
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long lastStep;
+    private int sinceKeyframe;
+
+    public CarTraceRecorder(String filename, CarState state) throws IOException {
+        this.state = state;
+        File file = new File(filename);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexChannel = FileChannel.open(new File(indexFile(filename)).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        segment.putInt(MAGIC).putInt(VERSION).putInt(CarState.FIELDS).putInt(KEYFRAME_INTERVAL);
+        keyframe(state.getStep());
+        state.addListener(this);
+    }
+
+    static String indexFile(String filename) {
+        return filename + ".idx";
+    }
+
+    public void carStateChanged(CarState changed, int dirtyMask) {
+        try {
+            if (segment.remaining() <= MAX_RECORD) {
+                nextSegment();
+            }
+            long step = changed.getStep();
+            if (step < lastStep) {
+                truncateIndex(step);
+                keyframe(step);
+                return;
+            }
+            if (sinceKeyframe >= KEYFRAME_INTERVAL) {
+                keyframe(step);
+                return;
+            }
+            segment.put(TAG_DELTA);
+            putVarLong(step - lastStep);
+            putVarLong(dirtyMask);
+            for (int i = 0; i < CarState.FIELDS; i++) {
+                if ((dirtyMask & (1 << i)) != 0) {
+                    int value = changed.get(i);
+                    int delta = value - last[i];
+                    putVarLong(((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL);
+                    last[i] = value;
+                }
+            }
+            lastStep = step;
+            sinceKeyframe++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void keyframe(long step) throws IOException {
+        if (!index.hasRemaining()) {
+            flushIndex();
+        }
+        index.putLong(step);
+        index.putLong(segmentStart + segment.position());
+        indexed++;
+        segment.put(TAG_KEYFRAME);
+        putVarLong(step);
+        for (int i = 0; i < CarState.FIELDS; i++) {
+            last[i] = state.get(i);
+            putVarLong(((last[i] << 1) ^ (last[i] >> 31)) & 0xFFFFFFFFL);
+        }
+        lastStep = step;
+        sinceKeyframe = 0;
+    }
+
+    /** Drops the index entries for keyframes after step; entries are sorted, so they are a suffix. */
+    private void truncateIndex(long step) throws IOException {
+        flushIndex();
+        long lo = 0;
+        long hi = indexed;
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        // first entry with a step after the restored one
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            entry.clear();
+            while (entry.hasRemaining()) {
+                if (indexChannel.read(entry, mid * INDEX_ENTRY_SIZE + entry.position()) < 0) {
+                    throw new EOFException("car trace index is shorter than written");
+                }
+            }
+            if (entry.getLong(0) <= step) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        indexed = lo;
+        indexChannel.truncate(indexed * INDEX_ENTRY_SIZE);
+    }
+
+    private void flushIndex() throws IOException {
+        index.flip();
+        long position = (indexed - index.remaining() / INDEX_ENTRY_SIZE) * INDEX_ENTRY_SIZE;
+        while (index.hasRemaining()) {
+            position += indexChannel.write(index, position);
+        }
+        index.clear();
+    }
+
+    private void nextSegment() throws IOException {
+        segment.put(TAG_END_OF_SEGMENT);
+        segment.force();
+        segmentStart += SEGMENT_SIZE;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            segment.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte) value);
+    }
+
+    /** Stops recording and trims the trace to the bytes actually written. */
+    public void close() throws IOException {
+        state.removeListener(this);
+        long length = segmentStart + segment.position();
+        segment.put(TAG_END_OF_SEGMENT);
+        segment.force();
+        segment = null;
+        flushIndex();
+        indexChannel.close();
+        channel.truncate(length + 1);
+        channel.close();
+    }
+}
@@ -0,0 +1,161 @@
+package mars.mips.instructions.customlangs;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access over a trace written by {@link CarTraceRecorder}. Seeking to a
+ * step binary searches the keyframe index, then decodes at most one keyframe
+ * interval of delta records. Both files are read through memory mappings, so a
+ * trace of hundreds of millions of steps never has to fit on the heap.
+ *
+ * Usage: java mars.mips.instructions.customlangs.CarTraceReplay drive.trace step...
+ */
+public class CarTraceReplay implements Closeable {
+
+    private static final long ENTRY_SIZE = 16;
+
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final long length;
+    private final long keyframes;
+    private final MappedByteBuffer index;
+    private MappedByteBuffer segment;
+    private long segmentStart = -1;
+
+    public CarTraceReplay(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        indexChannel = FileChannel.open(Paths.get(CarTraceRecorder.indexFile(filename)), StandardOpenOption.READ);
+        length = channel.size();
+        keyframes = indexChannel.size() / ENTRY_SIZE;
+        index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, keyframes * ENTRY_SIZE);
+        map(0);
+        if (segment.getInt() != CarTraceRecorder.MAGIC || segment.getInt() != CarTraceRecorder.VERSION) {
+            throw new IOException(filename + " is not a car trace");
+        }
+        if (segment.getInt() != CarState.FIELDS) {
+            throw new IOException(filename + " was recorded with a different set of car fields");
+        }
+        if (keyframes == 0) {
+            throw new IOException(filename + " has no keyframes");
+        }
+    }
+
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    /** Car fields as they were after every change recorded up to and including step. */
+    public int[] stateAt(long step) {
+        int[] fields = new int[CarState.FIELDS];
+        // last keyframe at or before step
+        long lo = 0;
+        long hi = keyframes - 1;
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            if (index.getLong((int) (mid * ENTRY_SIZE)) <= step) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long position = index.getLong((int) (lo * ENTRY_SIZE + 8));
+        seek(position);
+        segment.get(); // keyframe tag
+        long current = getVarLong();
+        for (int i = 0; i < CarState.FIELDS; i++) {
+            fields[i] = unzigzag(getVarLong());
+        }
+        while (true) {
+            long mark = segmentStart + segment.position();
+            if (mark >= length) {
+                break;
+            }
+            byte tag = segment.get();
+            if (tag == CarTraceRecorder.TAG_END_OF_SEGMENT) {
+                if (segmentStart + CarTraceRecorder.SEGMENT_SIZE >= length) {
+                    break;
+                }
+                map(segmentStart + CarTraceRecorder.SEGMENT_SIZE);
+                continue;
+            }
+            if (tag != CarTraceRecorder.TAG_DELTA) {
+                break;
+            }
+            long next = current + getVarLong();
+            if (next > step) {
+                break;
+            }
+            int mask = (int) getVarLong();
+            for (int i = 0; i < CarState.FIELDS; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    fields[i] += unzigzag(getVarLong());
+                }
+            }
+            current = next;
+        }
+        return fields;
+    }
+
+    private void seek(long position) {
+        long start = position - position % CarTraceRecorder.SEGMENT_SIZE;
+        if (start != segmentStart) {
+            map(start);
+        }
+        segment.position((int) (position - start));
+    }
+
+    private void map(long start) {
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(CarTraceRecorder.SEGMENT_SIZE, length - start));
+            segmentStart = start;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long getVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = segment.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int unzigzag(long encoded) {
+        int n = (int) encoded;
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        indexChannel.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: CarTraceReplay drive.trace step...");
+            return;
+        }
+        CarTraceReplay replay = new CarTraceReplay(args[0]);
+        try {
+            CarState car = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+            for (int a = 1; a < args.length; a++) {
+                int[] fields = replay.stateAt(Long.parseLong(args[a]));
+                for (int i = 0; i < fields.length; i++) {
+                    car.set(i, fields[i]);
+                }
+                System.out.println("step " + args[a] + ": " + CarMachine.describe(car));
+            }
+        } finally {
+            replay.close();
+        }
+    }
+}
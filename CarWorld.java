@@ -0,0 +1,257 @@
+package mars.mips.instructions.customlangs;
+
+/**
+ * A road shared by many cars. Positions live in a spatial hash: the plane is cut
+ * into CELL x CELL squares and every square hashes to a bucket of car ids.
+ *
+ * The road keeps two layers of positions and moves on one tick at a time. During
+ * a tick every car reads the road from the current layer (proximity, collisions)
+ * and publishes where it ended up into the other one, so readers never see a
+ * half-moved road and need no locks; only the buckets of the layer being written
+ * are guarded, by one of STRIPES locks each. Once every car has published,
+ * advance() makes the written layer current. {@link CarFleet} runs the ticks:
+ * each one steps the cars in batches on a pool and then advances the road, so a
+ * run gives the same result however the batches are scheduled.
+ *
+ * Every car, driving or parked (its program has ended), publishes once per tick
+ * and checks for collisions once per tick. A car within COLLISION_DISTANCE of
+ * another at the end of a tick sets its collision flag, and so does the other car.
+ */
+public class CarWorld {
+
+    public static final int CELL_SHIFT = 6;
+    public static final int CELL = 1 << CELL_SHIFT;
+    public static final int COLLISION_DISTANCE = 2;
+    /** proximity gives this when no other car is within RANGE units. */
+    public static final int NONE = Integer.MAX_VALUE;
+    public static final int RANGE_CELLS = 8;
+    public static final int RANGE = RANGE_CELLS * CELL;
+    /** Space between the lanes cars are spread over when they join. */
+    public static final int LANE_WIDTH = 4;
+    private static final int STRIPES = 64;
+
+    /** Every car's position as of one tick. */
+    private static final class Layer {
+        final long[] positions;
+        final int[] bucketOf;
+        final int[][] buckets;
+        final int[] bucketSizes;
+
+        Layer(int capacity, int size) {
+            positions = new long[capacity];
+            bucketOf = new int[capacity];
+            buckets = new int[size][];
+            bucketSizes = new int[size];
+        }
+    }
+
+    private final int capacity;
+    private final int bucketMask;
+    private final Object[] stripes = new Object[STRIPES];
+    private final Layer[] layers = new Layer[2];
+    private final CarState[] cars;
+    // layer the road is read from; the other one is written. Only changed by advance(),
+    // between ticks, so the pool running the ticks makes it visible to every car.
+    private int current;
+    private int joined;
+
+    public CarWorld(int capacity) {
+        this.capacity = capacity;
+        int size = Integer.highestOneBit(Math.max(capacity, 16) * 2 - 1) * 2;
+        bucketMask = size - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        layers[0] = new Layer(capacity, size);
+        layers[1] = new Layer(capacity, size);
+        cars = new CarState[capacity];
+    }
+
+    /** Puts car on the road in the next free lane. Every car has to join before the first tick. */
+    public synchronized int join(CarState car) {
+        if (joined == capacity) {
+            throw new IllegalStateException("the road is full (" + capacity + " cars)");
+        }
+        int id = joined++;
+        cars[id] = car;
+        car.set(CarState.POS_Y, id * LANE_WIDTH);
+        car.commit();
+        int x = car.get(CarState.POS_X);
+        int y = car.get(CarState.POS_Y);
+        for (Layer layer : layers) {
+            layer.positions[id] = pack(x, y);
+            layer.bucketOf[id] = bucket(x, y);
+            add(layer, layer.bucketOf[id], id);
+        }
+        car.joinWorld(this, id);
+        return id;
+    }
+
+    public int getCars() {
+        return joined;
+    }
+
+    /**
+     * Writes where car is now (after its tick, or after a sw to its x or y) into
+     * the layer the next tick reads. Called once per car per tick.
+     */
+    void publish(CarState car) {
+        int id = car.getWorldId();
+        int x = car.get(CarState.POS_X);
+        int y = car.get(CarState.POS_Y);
+        Layer layer = layers[current ^ 1];
+        layer.positions[id] = pack(x, y);
+        int to = bucket(x, y);
+        int from = layer.bucketOf[id];
+        if (to != from) {
+            add(layer, to, id);
+            remove(layer, from, id);
+            layer.bucketOf[id] = to;
+        }
+    }
+
+    /** Flags a collision on car if another car ended the last tick too close to it. */
+    void collisions(CarState car) {
+        int id = car.getWorldId();
+        Layer layer = layers[current];
+        long position = layer.positions[id];
+        if ((car.get(CarState.STATUS) & CarState.STATUS_COLLISION) == 0 && collides(layer, id, x(position), y(position))) {
+            car.collide();
+        }
+    }
+
+    /** Ends a tick: what the cars published becomes the road everyone reads. */
+    void advance() {
+        current ^= 1;
+    }
+
+    /**
+     * Distance from where car is now to the nearest other car as of the last tick,
+     * rounded down, or NONE if there is none within RANGE.
+     */
+    public int proximity(CarState car) {
+        int id = car.getWorldId();
+        Layer layer = layers[current];
+        int x = car.get(CarState.POS_X);
+        int y = car.get(CarState.POS_Y);
+        int cx = x >> CELL_SHIFT;
+        int cy = y >> CELL_SHIFT;
+        long best = Long.MAX_VALUE;
+        for (int ring = 0; ring <= RANGE_CELLS; ring++) {
+            for (int dx = -ring; dx <= ring; dx++) {
+                // only the edge of the ring; the inside was searched already
+                int step = Math.abs(dx) == ring ? 1 : 2 * ring;
+                for (int dy = -ring; dy <= ring; dy += step) {
+                    best = Math.min(best, nearest(layer, cellBucket(cx + dx, cy + dy), id, x, y));
+                }
+            }
+            // anything in the next ring is at least ring cells away
+            long reach = (long) ring * CELL;
+            if (best <= reach * reach) {
+                break;
+            }
+        }
+        // a bucket holds every cell hashing to it, so best can be a car far outside the rings
+        if (best > (long) RANGE * RANGE) {
+            return NONE;
+        }
+        return (int) Math.sqrt((double) best);
+    }
+
+    private boolean collides(Layer layer, int id, int x, int y) {
+        int cx = x >> CELL_SHIFT;
+        int cy = y >> CELL_SHIFT;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (collide(layer, cellBucket(cx + dx, cy + dy), id, x, y)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long nearest(Layer layer, int bucket, int id, int x, int y) {
+        long best = Long.MAX_VALUE;
+        int[] ids = layer.buckets[bucket];
+        int size = layer.bucketSizes[bucket];
+        for (int i = 0; i < size; i++) {
+            int other = ids[i];
+            if (other != id) {
+                best = Math.min(best, distanceSquared(layer.positions[other], x, y));
+            }
+        }
+        return best;
+    }
+
+    private static boolean collide(Layer layer, int bucket, int id, int x, int y) {
+        long limit = (long) COLLISION_DISTANCE * COLLISION_DISTANCE;
+        int[] ids = layer.buckets[bucket];
+        int size = layer.bucketSizes[bucket];
+        for (int i = 0; i < size; i++) {
+            int other = ids[i];
+            if (other != id && distanceSquared(layer.positions[other], x, y) < limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(Layer layer, int bucket, int id) {
+        synchronized (stripes[bucket & (STRIPES - 1)]) {
+            int[] ids = layer.buckets[bucket];
+            int size = layer.bucketSizes[bucket];
+            if (ids == null || size == ids.length) {
+                int[] grown = new int[ids == null ? 4 : ids.length * 2];
+                if (ids != null) {
+                    System.arraycopy(ids, 0, grown, 0, size);
+                }
+                ids = grown;
+                layer.buckets[bucket] = ids;
+            }
+            ids[size] = id;
+            layer.bucketSizes[bucket] = size + 1;
+        }
+    }
+
+    private void remove(Layer layer, int bucket, int id) {
+        synchronized (stripes[bucket & (STRIPES - 1)]) {
+            int[] ids = layer.buckets[bucket];
+            int size = layer.bucketSizes[bucket];
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[size - 1];
+                    layer.bucketSizes[bucket] = size - 1;
+                    return;
+                }
+            }
+        }
+    }
+
+    private int bucket(int x, int y) {
+        return cellBucket(x >> CELL_SHIFT, y >> CELL_SHIFT);
+    }
+
+    private int cellBucket(int cx, int cy) {
+        int h = cx * 0x9E3779B1 + cy * 0x85EBCA77;
+        return (h ^ (h >>> 16)) & bucketMask;
+    }
+
+    private static long distanceSquared(long position, int x, int y) {
+        long dx = (long) x(position) - x;
+        long dy = (long) y(position) - y;
+        return dx * dx + dy * dy;
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static int x(long position) {
+        return (int) (position >> 32);
+    }
+
+    private static int y(long position) {
+        return (int) position;
+    }
+}
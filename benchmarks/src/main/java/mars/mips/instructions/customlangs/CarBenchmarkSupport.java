@@ -0,0 +1,50 @@
+package mars.mips.instructions.customlangs;
+import mars.*;
+import mars.mips.hardware.Memory;
+import mars.mips.instructions.BasicInstruction;
+import mars.mips.instructions.Instruction;
+import java.io.File;
+import java.util.ArrayList;
+
+/** Shared setup for the benchmarks: MARS with Car Assembly as its only language. */
+class CarBenchmarkSupport {
+
+    private static CarAssembly language;
+
+    static synchronized CarAssembly installCarAssembly() {
+        if (language == null) {
+            Globals.initialize(false);
+            language = new CarAssembly();
+            language.populate();
+            ArrayList list = Globals.instructionSet.getInstructionList();
+            list.clear();
+            list.addAll(language.instructionList);
+        }
+        return language;
+    }
+
+    static BasicInstruction instruction(String name) {
+        for (Instruction instruction : installCarAssembly().instructionList) {
+            if (instruction.getName().equalsIgnoreCase(name)) {
+                return (BasicInstruction) instruction;
+            }
+        }
+        throw new IllegalArgumentException("no Car Assembly instruction named " + name);
+    }
+
+    /** A statement that hands the simulation code fixed operands, skipping binary decoding. */
+    static ProgramStatement statement(final int... operands) {
+        installCarAssembly();
+        return new ProgramStatement(0, Memory.textBaseAddress) {
+            @Override
+            public int[] getOperands() {
+                return operands;
+            }
+        };
+    }
+
+    /** Sample scripts live at the top of the repository; -Dcar.scripts overrides the directory. */
+    static String script(String name) {
+        return new File(System.getProperty("car.scripts", ".."), name).getPath();
+    }
+}
@@ -0,0 +1,64 @@
+package mars.mips.instructions.customlangs;
+import mars.mips.instructions.BasicInstruction;
+import mars.mips.instructions.Instruction;
+
+/** Shared helpers for the verifiers: machine code straight from the language's masks, and failing loudly. */
+class CarVerifierSupport {
+
+    private static CarAssembly language;
+
+    static synchronized CarAssembly language() {
+        if (language == null) {
+            language = new CarAssembly();
+            language.populate();
+        }
+        return language;
+    }
+
+    static BasicInstruction instruction(String mnemonic) {
+        for (Instruction instruction : language().instructionList) {
+            if (instruction.getName().equalsIgnoreCase(mnemonic)) {
+                return (BasicInstruction) instruction;
+            }
+        }
+        throw new IllegalArgumentException("no Car Assembly instruction named " + mnemonic);
+    }
+
+    /**
+     * The machine word for mnemonic with the given operands, in the order the
+     * instruction lists them (f, s, t in its mask). Branch operands are the raw
+     * offset in words from the next instruction; j takes the word address.
+     */
+    static int encode(String mnemonic, int... operands) {
+        String mask = instruction(mnemonic).getOperationMask().replace(" ", "");
+        int word = 0;
+        for (int i = 0; i < mask.length(); i++) {
+            char c = mask.charAt(i);
+            int bit;
+            if (c == '0' || c == '1') {
+                bit = c - '0';
+            } else {
+                // bits of an operand run from its most significant down to bit 0 at the last letter
+                int below = 0;
+                for (int k = i + 1; k < mask.length() && mask.charAt(k) == c; k++) {
+                    below++;
+                }
+                bit = (operands["fst".indexOf(c)] >>> below) & 1;
+            }
+            word = (word << 1) | bit;
+        }
+        return word;
+    }
+
+    static CarProgram program(int[] data, int... words) throws mars.ProcessingException {
+        language();
+        return CarProgram.fromBinary(words, mars.mips.hardware.Memory.textBaseAddress, data);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
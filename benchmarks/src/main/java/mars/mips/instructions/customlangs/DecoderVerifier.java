@@ -0,0 +1,98 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+import mars.mips.instructions.BasicInstruction;
+import mars.mips.instructions.Instruction;
+import java.util.ArrayList;
+import java.util.List;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks {@link CarDecoder} and self-modifying code in {@link CarMachine}: every
+ * instruction decodes from its own encoding, a table with two instructions on one
+ * opcode (or funct) is refused, and a sw into the program's text re-decodes the
+ * word for that machine and its snapshots only.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.DecoderVerifier
+ * Exits with status 1 on the first failure.
+ */
+public class DecoderVerifier {
+
+    private static final int T0 = 8;
+    private static final int T1 = 9;
+
+    public static void main(String[] args) throws ProcessingException {
+        decodesEveryInstruction();
+        refusesDuplicate("tick");
+        refusesDuplicate("sense");
+        rewritesPerMachine();
+        System.out.println("decoder ok");
+    }
+
+    private static void decodesEveryInstruction() {
+        CarDecoder decoder = new CarDecoder(language().instructionList);
+        for (Instruction instruction : language().instructionList) {
+            String name = instruction.getName();
+            check(decoder.decode(encode(name, 0, 0, 0)) == instruction, name + " decodes from its own encoding");
+        }
+    }
+
+    /** Adds a copy of mnemonic under another name: tick collides on a funct, sense on an opcode. */
+    private static void refusesDuplicate(String mnemonic) {
+        BasicInstruction original = instruction(mnemonic);
+        List<Instruction> list = new ArrayList<Instruction>(language().instructionList);
+        list.add(new BasicInstruction("x" + original.getExampleFormat(), "duplicate of " + mnemonic,
+                original.getInstructionFormat(), original.getOperationMask(), original.getSimulationCode()));
+        try {
+            new CarDecoder(list);
+            check(false, "a second instruction encoded like " + mnemonic + " is refused");
+        } catch (IllegalStateException e) {
+            check(e.getMessage().startsWith("ambiguous encoding"), "refused as ambiguous: " + e.getMessage());
+        }
+    }
+
+    private static void rewritesPerMachine() throws ProcessingException {
+        int text = Memory.textBaseAddress;
+        // copies the word at 5 (setspdi 77) over the one at 3 (setspdi 10), then jumps past 5
+        CarProgram program = program(new int[0],
+                encode("lw", T1, 20, T0),
+                encode("sw", T1, 12, T0),
+                encode("throttlei", 0),
+                encode("setspdi", 10),
+                encode("j", (text >>> 2) + 6),
+                encode("setspdi", 77));
+        CarMachine writer = new CarMachine();
+        writer.setRegister(T0, text);
+        writer.run(program);
+        check(writer.getState().get(CarState.SPEED) == 77, "the stored word runs in place of the old one");
+
+        // T0 at the data segment: lw and sw miss the text, so the machine runs the program as compiled
+        CarMachine other = new CarMachine();
+        other.setRegister(T0, Memory.dataBaseAddress);
+        other.run(program);
+        check(other.getState().get(CarState.SPEED) == 10, "another machine on the same program is not affected");
+        check(program.words[3] == encode("setspdi", 10), "the shared program keeps its words");
+
+        CarMachine fork = writer.fork();
+        fork.setRegister(T0, Memory.dataBaseAddress);
+        fork.getState().setSpeed(0);
+        fork.run(program);
+        check(fork.getState().get(CarState.SPEED) == 77, "a fork keeps the rewritten instruction");
+
+        writer.setRegister(T0, Memory.dataBaseAddress);
+        writer.getState().setSpeed(0);
+        writer.run(program);
+        check(writer.getState().get(CarState.SPEED) == 77, "a later run of the program keeps the rewrite");
+
+        CarMachine bad = new CarMachine();
+        bad.setRegister(T0, text);
+        bad.setRegister(T1, -1);
+        try {
+            bad.run(program(new int[0], encode("sw", T1, 4, T0), encode("tick")));
+            check(false, "storing a word that is no instruction into the text fails");
+        } catch (ProcessingException e) {
+            // an address error, as the README says
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package mars.mips.instructions.customlangs;
+import java.util.Random;
+
+/**
+ * Checks that {@link CarState#drive(int)} ends in exactly the state n calls to
+ * tick() do, for random speeds, steering, headings, gas levels and lengths. Each
+ * pair of cars then drives a short second leg, so leftover sub-unit position or
+ * gas that one of them got wrong shows up too.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.DriveTickVerifier [trials [seed]]
+ * Exits with status 1 on the first mismatch.
+ */
+public class DriveTickVerifier {
+
+    private static final int MAX_TICKS = 5000;
+    private static final int SECOND_LEG = 37;
+
+    public static void main(String[] args) {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        for (int trial = 0; trial < trials; trial++) {
+            CarState ticked = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+            CarState driven = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+            int gas = random.nextInt(101);
+            int speed = random.nextInt(300);
+            int steer = random.nextInt(400) - 200;
+            int heading = random.nextInt(1000) - 500;
+            int n = random.nextInt(MAX_TICKS);
+            for (CarState car : new CarState[]{ticked, driven}) {
+                car.fillGas(gas);
+                car.setSpeed(speed);
+                car.setSteer(steer);
+                car.set(CarState.HEADING, heading);
+                car.commit();
+            }
+            String start = CarMachine.describe(ticked);
+            for (int i = 0; i < n; i++) {
+                ticked.tick();
+            }
+            driven.drive(n);
+            check(seed, trial, start, n, ticked, driven);
+            for (int i = 0; i < SECOND_LEG; i++) {
+                ticked.tick();
+            }
+            driven.drive(SECOND_LEG);
+            check(seed, trial, start, n + SECOND_LEG, ticked, driven);
+        }
+        System.out.println(trials + " trials ok (seed " + seed + ")");
+    }
+
+    private static void check(long seed, int trial, String start, int n, CarState ticked, CarState driven) {
+        String expected = CarMachine.describe(ticked);
+        String actual = CarMachine.describe(driven);
+        if (!expected.equals(actual)) {
+            System.out.println("mismatch in trial " + trial + " (seed " + seed + ") after " + n + " ticks from " + start);
+            System.out.println("  tick:  " + expected);
+            System.out.println("  drive: " + actual);
+            System.exit(1);
+        }
+    }
+}
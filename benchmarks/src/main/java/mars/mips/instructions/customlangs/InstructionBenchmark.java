@@ -0,0 +1,114 @@
+package mars.mips.instructions.customlangs;
+import mars.ProgramStatement;
+import mars.mips.hardware.Memory;
+import mars.mips.hardware.RegisterFile;
+import mars.mips.instructions.SimulationCode;
+import org.openjdk.jmh.annotations.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One SimulationCode.simulate call per invocation, for each instruction in CarAssembly.
+ * Registers are set so the car instructions exercise their clamping paths: throttle
+ * stays at the floor of 0, steer saturates at 90 and fillgas caps at 100, and the
+ * same for their immediate and vector forms. lw and sw go to the first word of the
+ * data segment and the vector instructions to 16 records there. tick and drive move
+ * a car whose gas is set far past 100 so it never runs dry. Branches are taken, with
+ * an offset of 0 so the program counter stays put, and repeat counts down from
+ * Integer.MAX_VALUE. sense has no recording and proximity no road, so both take
+ * their fallback paths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dcar.telemetry=silent")
+@State(Scope.Thread)
+public class InstructionBenchmark {
+
+    private static final int T1 = 9;
+    private static final int T2 = 10;
+    private static final int T3 = 11;
+    private static final List<String> CAR_INSTRUCTIONS = Arrays.asList(
+            "throttle", "setspd", "steer", "setsteer", "ebrake", "lights", "ac", "seat", "pophood", "fillgas",
+            "drive", "proximity");
+    private static final List<String> IMMEDIATES = Arrays.asList(
+            "throttlei", "setspdi", "steeri", "setsteeri", "lightsi", "aci", "seati", "fillgasi");
+
+    @Param({"ADD", "sub", "mul", "div", "addi", "move", "and", "or", "xor", "slt", "lw", "sw",
+            "throttle", "setspd", "steer", "setsteer", "ebrake", "lights", "ac", "seat", "pophood", "fillgas",
+            "tick", "drive",
+            "throttlei", "setspdi", "steeri", "setsteeri", "lightsi", "aci", "seati", "fillgasi",
+            "sense", "proximity", "vthrottle", "vfillgas",
+            "beq", "bne", "j", "repeat"})
+    public String mnemonic;
+
+    private SimulationCode code;
+    private ProgramStatement statement;
+
+    @Setup
+    public void setUp() {
+        code = CarBenchmarkSupport.instruction(mnemonic).getSimulationCode();
+        boolean vector = mnemonic.equals("vthrottle") || mnemonic.equals("vfillgas");
+        boolean immediate = IMMEDIATES.contains(mnemonic);
+        int value = value(immediate ? mnemonic.substring(0, mnemonic.length() - 1) : mnemonic);
+        if (mnemonic.equals("addi")) {
+            statement = CarBenchmarkSupport.statement(T1, T2, 100);
+        } else if (mnemonic.equals("lw") || mnemonic.equals("sw")) {
+            statement = CarBenchmarkSupport.statement(T1, 0, T2);
+        } else if (immediate) {
+            statement = CarBenchmarkSupport.statement(value);
+        } else if (CAR_INSTRUCTIONS.contains(mnemonic)) {
+            statement = CarBenchmarkSupport.statement(T1);
+        } else if (mnemonic.equals("tick")) {
+            statement = CarBenchmarkSupport.statement();
+        } else if (mnemonic.equals("sense")) {
+            statement = CarBenchmarkSupport.statement(T1, 2);
+        } else if (mnemonic.equals("beq")) {
+            statement = CarBenchmarkSupport.statement(T1, T1, 0);
+        } else if (mnemonic.equals("bne")) {
+            statement = CarBenchmarkSupport.statement(T1, T2, 0);
+        } else if (mnemonic.equals("repeat")) {
+            statement = CarBenchmarkSupport.statement(T1, 0);
+        } else if (mnemonic.equals("j")) {
+            statement = CarBenchmarkSupport.statement(Memory.textBaseAddress >>> 2);
+        } else {
+            statement = CarBenchmarkSupport.statement(T1, T2, T3);
+        }
+        RegisterFile.updateRegister(T2, mnemonic.equals("lw") || mnemonic.equals("sw")
+                ? Memory.dataBaseAddress : vector ? 16 : 1234567);
+        RegisterFile.updateRegister(T3, mnemonic.equals("vthrottle") ? -5 : 89);
+        if (vector) {
+            RegisterFile.updateRegister(T1, Memory.dataBaseAddress);
+        } else if (mnemonic.equals("repeat")) {
+            RegisterFile.updateRegister(T1, Integer.MAX_VALUE);
+        } else {
+            RegisterFile.updateRegister(T1, value);
+        }
+        if (mnemonic.equals("tick") || mnemonic.equals("drive")) {
+            CarState car = CarDevice.getInstance().attach();
+            car.setSpeed(60);
+            car.setSteer(30);
+            car.set(CarState.GAS, Integer.MAX_VALUE);
+            car.commit();
+        }
+    }
+
+    /** The operand a car instruction gets: one that lands on its clamp where it has one. */
+    private static int value(String name) {
+        if (name.equals("throttle")) {
+            return -5;
+        } else if (name.equals("steer") || name.equals("fillgas")) {
+            return 30;
+        } else if (name.equals("lights")) {
+            return 0x11;
+        }
+        return 60;
+    }
+
+    @Benchmark
+    public void simulate() throws Exception {
+        code.simulate(statement);
+    }
+}
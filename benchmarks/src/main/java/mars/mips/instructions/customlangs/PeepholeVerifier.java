@@ -0,0 +1,66 @@
+package mars.mips.instructions.customlangs;
+import java.util.Arrays;
+import java.util.List;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks {@link CarPeephole}: an addi/car instruction pair is fused only when the
+ * register is dead afterwards, that is overwritten in the same straight run of
+ * code before anything reads it. A later read, a label (a branch target), a
+ * branch, a directive or the end of the program all keep the pair as it is.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.PeepholeVerifier
+ * Exits with status 1 on the first failure.
+ */
+public class PeepholeVerifier {
+
+    public static void main(String[] args) {
+        fuses("overwritten by addi",
+                "addi $t1, $zero, 60", "setspd $t1", "addi $t1, $zero, 5");
+        fuses("overwritten by lw",
+                "addi $t1, $zero, 60", "setspd $t1", "tick", "lw $t1, 0($t2)");
+        fuses("overwritten by sense",
+                "addi $t1, $zero, 0x11", "lights $t1", "sense $t1, 2");
+        fuses("overwritten after other registers are read",
+                "addi $t1, $zero, 30", "steer $t1", "add $t2, $t3, $t4", "sw $t2, 0($t3)", "move $t1, $t2");
+        keeps("read by a car instruction",
+                "addi $t1, $zero, 60", "setspd $t1", "throttle $t1", "addi $t1, $zero, 5");
+        keeps("read by add",
+                "addi $t1, $zero, 60", "setspd $t1", "add $t1, $t1, $t2");
+        keeps("read as a sw base",
+                "addi $t1, $zero, 60", "setspd $t1", "sw $t2, 0($t1)", "addi $t1, $zero, 5");
+        keeps("read before a branch target",
+                "addi $t1, $zero, 60", "setspd $t1", "loop: addi $t1, $zero, 5");
+        keeps("the car instruction is a branch target",
+                "addi $t1, $zero, 60", "target: setspd $t1", "addi $t1, $zero, 5");
+        keeps("a branch before the overwrite",
+                "addi $t1, $zero, 60", "setspd $t1", "beq $t2, $t3, done", "addi $t1, $zero, 5");
+        keeps("a directive before the overwrite",
+                "addi $t1, $zero, 60", "setspd $t1", ".data", "addi $t1, $zero, 5");
+        keeps("live at the end of the program",
+                "addi $t1, $zero, 60", "setspd $t1", "tick");
+        keeps("a different register",
+                "addi $t1, $zero, 60", "setspd $t2", "addi $t1, $zero, 5");
+
+        CarPeephole peephole = new CarPeephole();
+        List<String> lines = peephole.optimize(Arrays.asList(
+                "start: addi $t1, $zero, 60  # go", "setspd $t1", "addi $t1, $zero, 5"));
+        check(peephole.getFused() == 1 && lines.get(0).equals("start: setspdi 60") && lines.get(1).isEmpty(),
+                "a fused pair keeps the addi's label and line: " + lines);
+        System.out.println("peephole ok");
+    }
+
+    private static void fuses(String what, String... source) {
+        CarPeephole peephole = new CarPeephole();
+        List<String> lines = peephole.optimize(Arrays.asList(source));
+        check(peephole.getFused() == 1 && lines.get(1).isEmpty() && lines.get(0).endsWith("i " + source[0].split(", ")[2]),
+                "fuses when " + what + ": " + lines);
+    }
+
+    private static void keeps(String what, String... source) {
+        CarPeephole peephole = new CarPeephole();
+        List<String> lines = peephole.optimize(Arrays.asList(source));
+        check(peephole.getFused() == 0 && lines.equals(Arrays.asList(source)), "keeps the pair when " + what + ": " + lines);
+    }
+}
@@ -0,0 +1,48 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling a script that is already in the program cache: hashing the source
+ * for the key plus reading the entry back. The cache lives under target/, is
+ * emptied before each trial and filled by one assemble in setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dcar.telemetry=silent", "-Dcar.cache=target/carasm-cache"})
+@State(Scope.Thread)
+public class ProgramCacheBenchmark {
+
+    @Param({"blewTheEngine.asm", "stormyDrive.asm", "gasStop.asm"})
+    public String script;
+
+    private CarProgramCache cache;
+    private String key;
+
+    @Setup(Level.Trial)
+    public void fill() throws ProcessingException, IOException {
+        CarBenchmarkSupport.installCarAssembly();
+        cache = CarProgramCache.configured();
+        cache.clear();
+        String path = CarBenchmarkSupport.script(script);
+        CarProgram.assemble(path, false);
+        key = cache.key(path, false);
+        if (cache.load(key) == null) {
+            throw new IllegalStateException(script + " was not cached");
+        }
+    }
+
+    @Benchmark
+    public CarProgram assembleCached() throws ProcessingException {
+        return CarProgram.assemble(CarBenchmarkSupport.script(script), false);
+    }
+
+    @Benchmark
+    public CarProgram load() {
+        return cache.load(key);
+    }
+}
@@ -0,0 +1,89 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks {@link CarProgramCache}: a stored program comes back with the same ops,
+ * words and data, an unknown key, a changed source or an entry in an older
+ * format misses, and the least recently used entry is the one evicted.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.ProgramCacheVerifier
+ * Exits with status 1 on the first failure.
+ */
+public class ProgramCacheVerifier {
+
+    private static final int T1 = 9;
+
+    public static void main(String[] args) throws IOException, ProcessingException {
+        File directory = Files.createTempDirectory("carprog-verify").toFile();
+        try {
+            hitsAndMisses(new CarProgramCache(directory, 256), directory);
+            evictsLeastRecentlyUsed(new CarProgramCache(directory, 2), directory);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+        System.out.println("program cache ok");
+    }
+
+    private static void hitsAndMisses(CarProgramCache cache, File directory) throws IOException, ProcessingException {
+        CarProgram program = program(new int[]{3, 0, 4},
+                encode("addi", T1, 0, 10),
+                encode("tick"),
+                encode("repeat", T1, -2),
+                encode("j", Memory.textBaseAddress >>> 2));
+        String key = cache.key(source(directory, "a.asm", "tick"), false);
+        check(cache.load(key) == null, "an empty cache misses");
+        cache.store(key, program);
+        CarProgram hit = cache.load(key);
+        check(hit != null, "a stored program hits");
+        check(Arrays.equals(hit.code, program.code), "a hit has the same ops");
+        check(Arrays.equals(hit.words, program.words), "a hit has the same words");
+        check(Arrays.equals(hit.addresses, program.addresses), "a hit has the same addresses");
+        check(Arrays.equals(hit.getData(), program.getData()), "a hit has the same data");
+        String edited = cache.key(source(directory, "a.asm", "tick\ntick"), false);
+        check(!edited.equals(key) && cache.load(edited) == null, "an edited source misses");
+        check(!cache.key(source(directory, "a.asm", "tick"), true).equals(key), "fusing is part of the key");
+
+        // the version-1 layout stored the compiled ops; such entries must be ignored
+        ByteBuffer old = ByteBuffer.allocate(4 * 4);
+        old.putInt(0x43505247).putInt(1).putInt(0).putInt(0);
+        Files.write(new File(directory, key + ".carprog").toPath(), old.array());
+        check(cache.load(key) == null, "an entry in the old format misses");
+    }
+
+    private static void evictsLeastRecentlyUsed(CarProgramCache cache, File directory)
+            throws IOException, ProcessingException {
+        cache.clear();
+        CarProgram program = program(new int[0], encode("tick"));
+        String first = cache.key(source(directory, "first.asm", "first"), false);
+        String second = cache.key(source(directory, "second.asm", "second"), false);
+        String third = cache.key(source(directory, "third.asm", "third"), false);
+        long now = System.currentTimeMillis();
+        cache.store(first, program);
+        new File(directory, first + ".carprog").setLastModified(now - 20000);
+        cache.store(second, program);
+        new File(directory, second + ".carprog").setLastModified(now - 10000);
+        // a hit makes first the most recently used
+        check(cache.load(first) != null, "the first entry hits");
+        cache.store(third, program);
+        check(cache.load(second) == null, "the least recently used entry is evicted");
+        check(cache.load(first) != null && cache.load(third) != null, "the other entries are kept");
+    }
+
+    private static String source(File directory, String name, String text) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+}
@@ -0,0 +1,155 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks that {@link CarMachine}'s hardware loop for straight-line repeat bodies
+ * ends in the same registers, car, memory and instruction count as dispatching
+ * every repeat. Profiling turns the hardware loop off, so each random program is
+ * run once with it and once without; a copy with a never-taken bne in its body
+ * (which is then not straight-line) is run as well. Start counts include 0 and
+ * negative values, where the body runs once, and some bodies nest a second loop
+ * or count the loop register down themselves.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.RepeatLoopVerifier [trials [seed]]
+ * Exits with status 1 on the first failure.
+ */
+public class RepeatLoopVerifier {
+
+    private static final int T0 = 8;
+    private static final int T1 = 9;
+    private static final int T2 = 10;
+    private static final int T3 = 11;
+    private static final int T4 = 12;
+    private static final int T5 = 13;
+
+    public static void main(String[] args) throws ProcessingException {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 240L;
+        Random random = new Random(seed);
+        documentedCounts();
+        for (int trial = 0; trial < trials; trial++) {
+            int count = trial % 4 == 0 ? -random.nextInt(4) : random.nextInt(40);
+            List<Integer> body = body(random, random.nextInt(4) == 0);
+            CarProgram looped = loop(count, body, false);
+            CarProgram branchy = loop(count, body, true);
+            CarMachine hardware = run(looped, false);
+            CarMachine dispatched = run(looped, true);
+            String what = "trial " + trial + " (seed " + seed + ", count " + count + ")";
+            check(same(hardware, dispatched, true), what + ": hardware loop and dispatch differ");
+            check(same(hardware, run(branchy, false), false), what + ": a body with a branch differs");
+        }
+        System.out.println(trials + " loops ok");
+    }
+
+    /** The documented counts: a body of one tick runs n times for n >= 1 and once for n <= 0. */
+    private static void documentedCounts() throws ProcessingException {
+        for (int n = -3; n <= 5; n++) {
+            List<Integer> body = new ArrayList<Integer>();
+            body.add(encode("tick"));
+            for (boolean profile : new boolean[]{false, true}) {
+                CarMachine machine = run(loop(n, body, false), profile);
+                // the tick after the loop adds one
+                check(machine.getState().get(CarState.TICKS) == Math.max(n, 1) + 1,
+                        "count " + n + " runs the body " + Math.max(n, 1) + " times");
+                check(machine.getRegister(T1) == (n >= 1 ? 0 : n - 1), "count " + n + " leaves $t1 at "
+                        + (n >= 1 ? 0 : n - 1) + ", got " + machine.getRegister(T1));
+            }
+        }
+    }
+
+    private static List<Integer> body(Random random, boolean nested) {
+        List<Integer> body = new ArrayList<Integer>();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            body.add(instruction(random));
+        }
+        if (nested) {
+            // an inner straight-line loop; the outer body is then not straight-line
+            body.add(encode("addi", T5, 0, random.nextInt(5) - 1));
+            int inner = 1 + random.nextInt(3);
+            for (int i = 0; i < inner; i++) {
+                body.add(instruction(random));
+            }
+            body.add(encode("repeat", T5, -(inner + 1)));
+            body.add(instruction(random));
+        }
+        return body;
+    }
+
+    private static int instruction(Random random) {
+        switch (random.nextInt(11)) {
+            case 0:
+                return encode("addi", T2, T2, random.nextInt(11) - 5);
+            case 1:
+                return encode("add", T3, T3, T2);
+            case 2:
+                return encode("throttlei", random.nextInt(9) - 3);
+            case 3:
+                return encode("steeri", random.nextInt(41) - 20);
+            case 4:
+                return encode("tick");
+            case 5:
+                return encode("sw", T3, 0, T0);
+            case 6:
+                return encode("lw", T3, 0, T0);
+            case 7:
+                return encode("lightsi", random.nextInt(0x20));
+            case 8:
+                return encode("drive", T4);
+            case 9:
+                return encode("fillgasi", random.nextInt(5));
+            default:
+                // the body counting the loop down itself
+                return encode("addi", T1, T1, -1);
+        }
+    }
+
+    /** addi $t1, $zero, count; the body; repeat $t1 back to its start; tick. */
+    private static CarProgram loop(int count, List<Integer> body, boolean branch) throws ProcessingException {
+        int[] words = new int[body.size() + (branch ? 4 : 3)];
+        int n = 0;
+        words[n++] = encode("addi", T1, 0, count);
+        for (int word : body) {
+            words[n++] = word;
+        }
+        if (branch) {
+            words[n++] = encode("bne", 0, 0, 0);
+        }
+        words[n] = encode("repeat", T1, -n);
+        n++;
+        words[n] = encode("tick");
+        return program(new int[0], words);
+    }
+
+    private static CarMachine run(CarProgram program, boolean profile) throws ProcessingException {
+        CarMachine machine = new CarMachine();
+        machine.setRegister(T0, Memory.dataBaseAddress);
+        machine.setRegister(T4, 3);
+        machine.getState().setSpeed(7);
+        boolean was = CarProfiler.isEnabled();
+        CarProfiler.setEnabled(profile);
+        try {
+            machine.run(program);
+        } finally {
+            CarProfiler.setEnabled(was);
+        }
+        return machine;
+    }
+
+    private static boolean same(CarMachine a, CarMachine b, boolean counts) {
+        for (int r = 0; r < 32; r++) {
+            if (a.getRegister(r) != b.getRegister(r)) {
+                return false;
+            }
+        }
+        return CarMachine.describe(a.getState()).equals(CarMachine.describe(b.getState()))
+                && a.getMemory().getWord(Memory.dataBaseAddress) == b.getMemory().getWord(Memory.dataBaseAddress)
+                && (!counts || a.getExecuted() == b.getExecuted());
+    }
+}
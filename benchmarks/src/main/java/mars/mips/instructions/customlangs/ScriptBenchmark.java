@@ -0,0 +1,58 @@
+package mars.mips.instructions.customlangs;
+import mars.*;
+import mars.mips.hardware.RegisterFile;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end runs of the sample drives. "engine" runs the compiled program on a
+ * fresh CarMachine; "simulator" runs it through the regular MARS simulator. The
+ * program is assembled once per iteration, and each simulator invocation puts
+ * the registers, program counter and car back before running (the sample drives
+ * never write memory, so the assembled text and data stay as they were).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dcar.telemetry=silent", "-Dcar.cache=off"})
+@State(Scope.Thread)
+public class ScriptBenchmark {
+
+    @Param({"blewTheEngine.asm", "stormyDrive.asm", "gasStop.asm"})
+    public String script;
+
+    private CarProgram compiled;
+    private MIPSprogram program;
+
+    @Setup(Level.Trial)
+    public void compile() throws ProcessingException {
+        CarBenchmarkSupport.installCarAssembly();
+        compiled = CarProgram.assemble(CarBenchmarkSupport.script(script));
+    }
+
+    @Setup(Level.Iteration)
+    public void assemble() throws ProcessingException {
+        String path = CarBenchmarkSupport.script(script);
+        ArrayList<String> files = new ArrayList<String>();
+        files.add(path);
+        program = new MIPSprogram();
+        program.assemble(program.prepareFilesForAssembly(files, path, null), false, false);
+    }
+
+    @Benchmark
+    public CarState engine() throws ProcessingException {
+        CarMachine machine = new CarMachine();
+        machine.run(compiled);
+        return machine.getState();
+    }
+
+    @Benchmark
+    public boolean simulator() throws ProcessingException {
+        RegisterFile.resetRegisters();
+        RegisterFile.initializeProgramCounter(true);
+        CarDevice.getInstance().reset();
+        return program.simulate(-1);
+    }
+}
@@ -0,0 +1,118 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks {@link CarMachine} snapshots, forks and data loading: load(program) puts
+ * every initial data word back, zeros included, and later runs leave memory alone;
+ * a fork and its parent never see each other's writes nor change the snapshot
+ * they share; and a restore only puts back the pages written since the snapshot,
+ * which are the only ones getDirtyPages() counts and restore walks.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.SnapshotVerifier
+ * Exits with status 1 on the first failure.
+ */
+public class SnapshotVerifier {
+
+    private static final int T0 = 8;
+    private static final int T1 = 9;
+
+    public static void main(String[] args) throws ProcessingException {
+        reloadsZeroWords();
+        forksAreIsolated();
+        restoresDirtyPagesOnly();
+        System.out.println("snapshots ok");
+    }
+
+    private static void reloadsZeroWords() throws ProcessingException {
+        int data = Memory.dataBaseAddress;
+        // .word 0, 7; the program stores 99 over both
+        CarProgram program = program(new int[]{0, 7},
+                encode("addi", T1, 0, 99),
+                encode("sw", T1, 0, T0),
+                encode("sw", T1, 4, T0));
+        CarMachine machine = new CarMachine();
+        machine.setRegister(T0, data);
+        machine.run(program);
+        check(machine.getMemory().getWord(data) == 99 && machine.getMemory().getWord(data + 4) == 99,
+                "the program stores into its data");
+        machine.getMemory().setWord(data + 8, 5);
+        machine.load(program);
+        check(machine.getMemory().getWord(data) == 0, "load puts back a zero data word");
+        check(machine.getMemory().getWord(data + 4) == 7, "load puts back a non-zero data word");
+        check(machine.getMemory().getWord(data + 8) == 0, "load clears the rest of the data segment");
+        machine.getMemory().setWord(data + 4, 1);
+        machine.run(program(new int[]{0, 7}, encode("addi", T1, 0, 1)));
+        check(machine.getMemory().getWord(data + 4) == 1, "a later run leaves memory as it is");
+    }
+
+    private static void forksAreIsolated() throws ProcessingException {
+        int data = Memory.dataBaseAddress;
+        CarProgram store = program(new int[0], encode("sw", T1, 0, T0), encode("setspd", T1));
+        CarMachine parent = new CarMachine();
+        parent.setRegister(T0, data);
+        parent.setRegister(T1, 1);
+        parent.run(store);
+        CarSnapshot start = parent.snapshot();
+        CarMachine child = parent.fork();
+        check(child.getMemory().getWord(data) == 1 && child.getState().get(CarState.SPEED) == 1
+                && child.getRegister(T1) == 1, "a fork starts where its parent is");
+
+        child.setRegister(T1, 2);
+        child.run(store);
+        check(parent.getMemory().getWord(data) == 1 && parent.getState().get(CarState.SPEED) == 1,
+                "the parent does not see the fork's writes");
+        parent.setRegister(T1, 3);
+        parent.run(store);
+        check(child.getMemory().getWord(data) == 2 && child.getState().get(CarState.SPEED) == 2,
+                "the fork does not see the parent's writes");
+        CarMachine fromSnapshot = new CarMachine(start);
+        check(fromSnapshot.getMemory().getWord(data) == 1 && fromSnapshot.getRegister(T1) == 1
+                && fromSnapshot.getState().get(CarState.SPEED) == 1, "the shared snapshot is unchanged");
+
+        parent.restore(start);
+        check(parent.getMemory().getWord(data) == 1 && parent.getRegister(T1) == 1
+                && parent.getState().get(CarState.SPEED) == 1, "restore goes back to the snapshot");
+        parent.getMemory().setWord(data, 4);
+        check(new CarMachine(start).getMemory().getWord(data) == 1 && child.getMemory().getWord(data) == 2,
+                "writes after a restore are copied again");
+    }
+
+    private static void restoresDirtyPagesOnly() {
+        int data = Memory.dataBaseAddress;
+        int pages = 64;
+        CarMemory memory = new CarMemory();
+        for (int i = 0; i < pages; i++) {
+            memory.setWord(data + i * 4 * CarMemory.PAGE_WORDS, i + 1);
+        }
+        CarMemory.Snapshot start = memory.snapshot();
+        check(memory.getDirtyPages() == 0, "a snapshot starts with no dirty pages");
+
+        // three words on two pages
+        memory.setWord(data, 100);
+        memory.setWord(data + 8, 101);
+        memory.setWord(data + 5 * 4 * CarMemory.PAGE_WORDS, 105);
+        check(memory.getDirtyPages() == 2, "only the written pages are copied, got " + memory.getDirtyPages());
+        check(new CarMemory(start).getWord(data) == 1, "writing a copied page leaves the snapshot alone");
+        // reads never copy
+        memory.getWord(data + 9 * 4 * CarMemory.PAGE_WORDS);
+        check(memory.getDirtyPages() == 2, "reads copy nothing");
+
+        memory.restore(start);
+        check(memory.getDirtyPages() == 0, "restore leaves nothing dirty");
+        for (int i = 0; i < pages; i++) {
+            check(memory.getWord(data + i * 4 * CarMemory.PAGE_WORDS) == i + 1, "page " + i + " is back");
+        }
+        check(memory.getWord(data + 8) == 0, "a word written only after the snapshot is 0 again");
+
+        // an older snapshot is restored table by table; later pages go away
+        memory.setWord(data + pages * 4 * CarMemory.PAGE_WORDS, 7);
+        CarMemory.Snapshot later = memory.snapshot();
+        memory.restore(start);
+        check(memory.getWord(data + pages * 4 * CarMemory.PAGE_WORDS) == 0, "an older snapshot drops later pages");
+        memory.restore(later);
+        check(memory.getWord(data + pages * 4 * CarMemory.PAGE_WORDS) == 7, "and the later snapshot brings them back");
+    }
+}
@@ -0,0 +1,38 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What it costs to get a drive ready to run: building the language, then
+ * assembling a script. The program cache is off so every assemble runs the
+ * assembler; ProgramCacheBenchmark covers the cached path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dcar.telemetry=silent", "-Dcar.cache=off"})
+@State(Scope.Thread)
+public class StartupBenchmark {
+
+    @Param({"blewTheEngine.asm", "stormyDrive.asm", "gasStop.asm"})
+    public String script;
+
+    @Setup
+    public void setUp() {
+        CarBenchmarkSupport.installCarAssembly();
+    }
+
+    @Benchmark
+    public CarAssembly populate() {
+        CarAssembly language = new CarAssembly();
+        language.populate();
+        return language;
+    }
+
+    @Benchmark
+    public CarProgram assemble() throws ProcessingException {
+        return CarProgram.assemble(CarBenchmarkSupport.script(script));
+    }
+}
@@ -0,0 +1,115 @@
+package mars.mips.instructions.customlangs;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Records a long random drive with {@link CarTraceRecorder}, then checks that
+ * {@link CarTraceReplay#stateAt(long)} gives back the car exactly as it was at a
+ * spread of steps, including steps just before and after keyframes. Now and then
+ * the drive is rewound to an earlier checkpoint, the way restoring a snapshot
+ * does, and only the branch driven last must come back.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.TraceRoundTripVerifier [changes [seed]]
+ * Exits with status 1 on the first mismatch.
+ */
+public class TraceRoundTripVerifier {
+
+    private static final int SAMPLES = 4096;
+    private static final int REWINDS = 16;
+
+    public static void main(String[] args) throws IOException {
+        int changes = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        File trace = File.createTempFile("cartrace", ".trace");
+        File index = new File(CarTraceRecorder.indexFile(trace.getPath()));
+        try {
+            Map<Long, String> expected = record(trace.getPath(), changes, random);
+            CarTraceReplay replay = new CarTraceReplay(trace.getPath());
+            try {
+                CarState car = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+                for (Map.Entry<Long, String> entry : expected.entrySet()) {
+                    int[] fields = replay.stateAt(entry.getKey());
+                    for (int i = 0; i < fields.length; i++) {
+                        car.set(i, fields[i]);
+                    }
+                    String actual = CarMachine.describe(car);
+                    if (!actual.equals(entry.getValue())) {
+                        System.out.println("mismatch at step " + entry.getKey() + " (seed " + seed + ")");
+                        System.out.println("  recorded: " + entry.getValue());
+                        System.out.println("  replayed: " + actual);
+                        System.exit(1);
+                    }
+                }
+                System.out.println(expected.size() + " steps ok over " + replay.getKeyframes()
+                        + " keyframes (seed " + seed + ")");
+            } finally {
+                replay.close();
+            }
+        } finally {
+            trace.delete();
+            index.delete();
+        }
+    }
+
+    /** Drives a car through random changes and returns the car as it was at sampled steps. */
+    static Map<Long, String> record(String filename, int changes, Random random) throws IOException {
+        CarState car = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+        CarTraceRecorder recorder = new CarTraceRecorder(filename, car);
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        int every = Math.max(1, changes / SAMPLES);
+        int rewindEvery = Math.max(2, changes / REWINDS);
+        CarState checkpoint = new CarState(new CarTelemetry(CarTelemetry.SILENT));
+        checkpoint.copyFrom(car);
+        long step = 0;
+        try {
+            for (int i = 0; i < changes; i++) {
+                if (i % rewindEvery == rewindEvery / 2) {
+                    checkpoint.copyFrom(car);
+                } else if (i % rewindEvery == rewindEvery - 1) {
+                    // drop everything recorded after the checkpoint, as CarMachine.restore does
+                    car.copyFrom(checkpoint);
+                    step = car.getStep();
+                    expected.tailMap(step, false).clear();
+                }
+                // steps between changes, as when instructions that touch nothing run in between
+                long next = step + 1 + random.nextInt(3);
+                if (i % every == 0) {
+                    // nothing changes between two recorded steps
+                    expected.put(next - 1, CarMachine.describe(car));
+                }
+                step = next;
+                car.setStep(step);
+                change(car, random);
+                if (i % every == 0 || i % CarTraceRecorder.KEYFRAME_INTERVAL == 0 || i == changes - 1) {
+                    expected.put(step, CarMachine.describe(car));
+                }
+            }
+        } finally {
+            recorder.close();
+        }
+        return expected;
+    }
+
+    private static void change(CarState car, Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                car.throttle(random.nextInt(21) - 10);
+                break;
+            case 1:
+                car.steer(random.nextInt(41) - 20);
+                break;
+            case 2:
+                car.fillGas(random.nextInt(11) - 5);
+                break;
+            case 3:
+                car.lights(1 << random.nextInt(5));
+                break;
+            default:
+                car.tick();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package mars.mips.instructions.customlangs;
+import mars.ProcessingException;
+import mars.mips.hardware.Memory;
+import java.util.Random;
+
+import static mars.mips.instructions.customlangs.CarVerifierSupport.*;
+
+/**
+ * Checks vthrottle and vfillgas in {@link CarMachine}, which update records
+ * straight in the memory pages, against applying the rule to one record at a
+ * time: runs of records that cross page boundaries at every word offset, runs
+ * longer than a page, and records overlapping the car device, whose fields have
+ * to change the car itself. Every word of the run is compared, so a stray write
+ * to a field other than speed or gas fails as well.
+ *
+ * Usage: java -cp benchmarks.jar:Mars.jar mars.mips.instructions.customlangs.VectorRecordsVerifier [seed]
+ * Exits with status 1 on the first failure.
+ */
+public class VectorRecordsVerifier {
+
+    private static final int T1 = 9;
+    private static final int T2 = 10;
+    private static final int T3 = 11;
+    private static final int RECORD_BYTES = CarState.RECORD_WORDS * 4;
+    private static final int PAGE_BYTES = CarMemory.PAGE_WORDS * 4;
+
+    public static void main(String[] args) throws ProcessingException {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 16L);
+        for (String mnemonic : new String[]{"vthrottle", "vfillgas"}) {
+            int pageEnd = Memory.dataBaseAddress + 2 * PAGE_BYTES;
+            for (int offset = 0; offset < RECORD_BYTES; offset += 4) {
+                verify(random, mnemonic, pageEnd - 3 * RECORD_BYTES + offset, 7);
+            }
+            verify(random, mnemonic, Memory.dataBaseAddress + 12, 300);
+            int device = CarDevice.getBaseAddress();
+            for (int before = 0; before <= 2; before++) {
+                for (int offset = 0; offset < RECORD_BYTES; offset += 4) {
+                    int base = device - before * RECORD_BYTES + offset;
+                    // as many records as fit below the top of memory
+                    int count = (int) ((0x100000000L - (base & 0xFFFFFFFFL)) / RECORD_BYTES);
+                    verify(random, mnemonic, base, count);
+                }
+            }
+            verify(random, mnemonic, Memory.dataBaseAddress, 0);
+            verify(random, mnemonic, Memory.dataBaseAddress, -3);
+            refusesPastTheEnd(mnemonic, device);
+        }
+        System.out.println("vector records ok");
+    }
+
+    private static void verify(Random random, String mnemonic, int base, int count) throws ProcessingException {
+        int field = mnemonic.equals("vthrottle") ? CarState.SPEED : CarState.GAS;
+        int amount = random.nextInt(81) - 40;
+        CarProgram program = program(new int[0], encode(mnemonic, T1, T2, T3));
+        CarMachine machine = new CarMachine();
+        // loaded first, so the first run does not clear the records written below
+        machine.load(program);
+        int words = Math.max(count, 1) * CarState.RECORD_WORDS;
+        int[] before = new int[words];
+        for (int i = 0; i < words; i++) {
+            before[i] = random.nextInt(301) - 100;
+            write(machine, base + 4 * i, before[i]);
+        }
+        machine.setRegister(T1, base);
+        machine.setRegister(T2, count);
+        machine.setRegister(T3, amount);
+        machine.run(program);
+        for (int i = 0; i < words; i++) {
+            int expected = before[i];
+            if (i % CarState.RECORD_WORDS == field && i / CarState.RECORD_WORDS < count) {
+                expected = field == CarState.SPEED
+                        ? CarState.throttled(expected, amount) : CarState.filled(expected, amount);
+            }
+            int address = base + 4 * i;
+            check(read(machine, address) == expected, mnemonic + " " + count + " records at 0x"
+                    + Integer.toHexString(base) + ": word at 0x" + Integer.toHexString(address)
+                    + " is " + read(machine, address) + ", expected " + expected);
+        }
+    }
+
+    private static void refusesPastTheEnd(String mnemonic, int device) {
+        CarMachine machine = new CarMachine();
+        machine.setRegister(T1, device);
+        machine.setRegister(T2, 3);
+        machine.setRegister(T3, 1);
+        try {
+            machine.run(program(new int[0], encode(mnemonic, T1, T2, T3)));
+            check(false, mnemonic + " refuses records past the end of memory");
+        } catch (ProcessingException e) {
+            check(machine.getState().get(CarState.SPEED) == 0 && machine.getState().get(CarState.GAS)
+                    == new CarMachine().getState().get(CarState.GAS), mnemonic + " changes nothing when it refuses");
+        }
+    }
+
+    /** A word as lw sees it: car fields from the car, everything else from memory. */
+    private static int read(CarMachine machine, int address) {
+        int offset = address - CarDevice.getBaseAddress();
+        if (offset >= 0 && offset < CarState.FIELDS * 4) {
+            return machine.getState().get(offset >> 2);
+        }
+        return machine.getMemory().getWord(address);
+    }
+
+    private static void write(CarMachine machine, int address, int value) {
+        int offset = address - CarDevice.getBaseAddress();
+        if (offset >= 0 && offset < CarState.FIELDS * 4) {
+            machine.getState().set(offset >> 2, value);
+            machine.getState().commit();
+        } else {
+            machine.getMemory().setWord(address, value);
+        }
+    }
+}